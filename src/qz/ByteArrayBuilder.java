@@ -25,9 +25,17 @@
 
 package qz;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /*
  * Provides a simple way and efficient for concatenating byte arrays, similar
@@ -42,7 +50,7 @@ import java.util.ArrayList;
  */
 
 public final class ByteArrayBuilder {
-    private ArrayList<byte[]> buffer;
+    private ArrayList<ByteBuffer> buffer;
     
     private int length = 0;
     
@@ -61,7 +69,7 @@ public final class ByteArrayBuilder {
      * Creates a new <code>ByteArrayBuilder</code> and sets initial capacity to 10
      */
     public ByteArrayBuilder() {
-        buffer=new ArrayList<byte[]>(10);
+        buffer=new ArrayList<ByteBuffer>(10);
     }
     
     /**
@@ -71,7 +79,7 @@ public final class ByteArrayBuilder {
      * @param initialCapacity the initial capacity of the <code>ByteArrayBuilder</code>
      */
     public ByteArrayBuilder(int initialCapacity){
-        buffer=new ArrayList<byte[]>(initialCapacity);
+        buffer=new ArrayList<ByteBuffer>(initialCapacity);
     }
 
     /**
@@ -118,9 +126,22 @@ public final class ByteArrayBuilder {
      * @return this <code>ByteArrayBuilder</code>
      */
     public final ByteArrayBuilder append(byte[] bs){
+        return append(ByteBuffer.wrap(bs));
+    }
+
+    /**
+     * Appends the remaining bytes of a heap buffer without copying them, so
+     * a partly filled array can be used as it is. The buffer's position is
+     * not changed.
+     * Returns this same object to allow chaining calls
+     *
+     * @param bb a buffer backed by an array
+     * @return this <code>ByteArrayBuilder</code>
+     */
+    public final ByteArrayBuilder append(ByteBuffer bb){
         this.resetContents();
-        length+=bs.length;
-        buffer.add(bs);
+        length+=bb.remaining();
+        buffer.add(bb.slice());
         return this;
     }
     
@@ -159,15 +180,49 @@ public final class ByteArrayBuilder {
      * @return The contents of this <code>ByteArrayBuilder</code> as a single <code>byte</code> array
      */
     public byte[] getByteArray(){
-        if(contents==null)
+        if(contents==null && buffer.size()==1 && isWholeArray(buffer.get(0)))
+        {
+            // a single chunk is already the full contents, no need to copy it
+            contents=buffer.get(0).array();
+        }
+        else if(contents==null)
         {
             contents=new byte[this.getLength()];
             int pos=0;
-            for (byte[] bs:buffer){
-                System.arraycopy(bs, 0, contents, pos, bs.length);
-                pos+=bs.length;
+            for (ByteBuffer bb:buffer){
+                System.arraycopy(bb.array(), bb.arrayOffset(), contents, pos, bb.remaining());
+                pos+=bb.remaining();
             }
         }
         return contents;
     }
+
+    /**
+     * Writes the contents to a stream chunk by chunk, without first joining
+     * them into a single array
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        for (ByteBuffer bb:buffer){
+            out.write(bb.array(), bb.arrayOffset(), bb.remaining());
+        }
+    }
+
+    /**
+     * @return a stream over the contents, without first joining them into a
+     * single array
+     */
+    public InputStream getInputStream() {
+        List<InputStream> streams=new ArrayList<InputStream>(buffer.size());
+        for (ByteBuffer bb:buffer){
+            streams.add(new ByteArrayInputStream(bb.array(), bb.arrayOffset(), bb.remaining()));
+        }
+        return streams.size()==1 ? streams.get(0) : new SequenceInputStream(Collections.enumeration(streams));
+    }
+
+    private static boolean isWholeArray(ByteBuffer bb){
+        return bb.arrayOffset()==0 && bb.remaining()==bb.array().length;
+    }
 }
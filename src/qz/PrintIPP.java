@@ -0,0 +1,481 @@
+/**
+ * This file is part of WebPrint
+ *
+ * @author Michael Wallace
+ *
+ * Copyright (C) 2015 Michael Wallace, WallaceIT
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the GNU Lesser General Public License (LGPL)
+ * version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ */
+package qz;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import javax.print.PrintException;
+
+/**
+ * Sends raw jobs straight to an IPP/1.1 printer or CUPS queue over HTTP,
+ * instead of through javax.print or lp. The job data is streamed in the
+ * Print-Job request, then the job is followed with Get-Job-Attributes so the
+ * state the printer reports (processing, completed, aborted...) is known.
+ *
+ * @author michael
+ */
+public class PrintIPP {
+
+    /**
+     * Notified as the job progresses
+     */
+    public interface JobListener {
+
+        /**
+         * The printer has received all of the job data
+         *
+         * @param jobId
+         */
+        void dataTransferred(int jobId);
+
+        /**
+         * @param jobId
+         * @param state the IPP job-state keyword, eg. "processing"
+         * @param reasons the job-state-reasons, comma separated
+         */
+        void jobStateChanged(int jobId, String state, String reasons);
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // operations
+    private static final int PRINT_JOB = 0x0002;
+    private static final int GET_JOB_ATTRIBUTES = 0x0009;
+    private static final int GET_PRINTER_ATTRIBUTES = 0x000B;
+    // delimiter tags
+    private static final int OPERATION_ATTRIBUTES = 0x01;
+    private static final int END_OF_ATTRIBUTES = 0x03;
+    // value tags
+    private static final int INTEGER = 0x21;
+    private static final int BOOLEAN = 0x22;
+    private static final int ENUM = 0x23;
+    private static final int TEXT_WITH_LANGUAGE = 0x35;
+    private static final int NAME_WITH_LANGUAGE = 0x36;
+    private static final int NAME = 0x42;
+    private static final int KEYWORD = 0x44;
+    private static final int URI_TAG = 0x45;
+    private static final int CHARSET = 0x47;
+    private static final int NATURAL_LANGUAGE = 0x48;
+    private static final int MIME_MEDIA_TYPE = 0x49;
+
+    private static final String RAW_FORMAT = "application/octet-stream";
+    private static final String CUPS_RAW_FORMAT = "application/vnd.cups-raw";
+    private static final String[] JOB_STATES = {null, null, null, "pending", "pending-held",
+        "processing", "processing-stopped", "canceled", "aborted", "completed"};
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 60000;
+    // job state polling interval (ms), doubled up to the maximum while the job runs
+    private static final long POLL_START = 100;
+    private static final long POLL_MAX = 2000;
+    // failed job state polls in a row before the job is left to the printer
+    private static final int MAX_POLL_FAILURES = 3;
+
+    private static final AtomicInteger requestIds = new AtomicInteger(0);
+
+    private final String printerUri;
+    private final URL url;
+    private final String user = System.getProperty("user.name", "webprint");
+    // the format raw data is sent as, chosen from the printer's attributes on the first job
+    private volatile String documentFormat;
+
+    /**
+     * @param printerUri the printer, eg. ipp://localhost:631/printers/Receipt,
+     * an http(s) URL is also accepted
+     * @throws URISyntaxException if the URI is not an ipp, ipps or http(s)
+     * URI with a host
+     */
+    public PrintIPP(String printerUri) throws URISyntaxException {
+        URI uri = new URI(printerUri);
+        String scheme = uri.getScheme() == null ? "" : uri.getScheme().toLowerCase();
+        String http;
+        switch (scheme) {
+            case "ipp":
+            case "http":
+                http = "http";
+                break;
+            case "ipps":
+            case "https":
+                http = "https";
+                break;
+            default:
+                throw new URISyntaxException(printerUri, "Not an IPP printer URI");
+        }
+        if (uri.getHost() == null) {
+            throw new URISyntaxException(printerUri, "No host in IPP printer URI");
+        }
+        int port = uri.getPort() > 0 ? uri.getPort() : scheme.startsWith("ipp") ? 631 : -1;
+        try {
+            this.url = new URI(http, null, uri.getHost(), port, uri.getPath(), uri.getQuery(), null).toURL();
+        } catch (IOException ex) {
+            throw new URISyntaxException(printerUri, ex.getMessage());
+        }
+        this.printerUri = scheme.startsWith("http") ? new URI(scheme.equals("http") ? "ipp" : "ipps", null,
+                uri.getHost(), port, uri.getPath(), uri.getQuery(), null).toString() : printerUri;
+    }
+
+    public String getPrinterUri() {
+        return printerUri;
+    }
+
+    /**
+     * Prints raw data and waits for the printer to finish the job
+     *
+     * @param data
+     * @param jobName
+     * @param listener notified of the job's progress, may be null
+     * @param timeout time (ms) to follow the job for after it was accepted,
+     * the job is left to the printer after that
+     * @return true if the printer reported the job completed, false if the
+     * job was left to the printer, after the timeout or because its state
+     * could no longer be read
+     * @throws PrintException if the printer rejects the job, or reports it
+     * aborted or canceled
+     * @throws IOException if the printer cannot be reached
+     * @throws InterruptedException
+     */
+    public boolean print(ByteBuffer data, String jobName, JobListener listener, long timeout) throws PrintException, IOException, InterruptedException {
+        Map<String, List<Object>> response = printJob(data, jobName);
+        int jobId = getInt(response, "job-id", -1);
+        if (jobId < 0) {
+            throw new PrintException("IPP printer " + printerUri + " did not return a job id");
+        }
+        LogIt.log("IPP job " + jobId + " sent to " + printerUri);
+        if (listener != null) {
+            listener.dataTransferred(jobId);
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        long interval = POLL_START;
+        int state = getInt(response, "job-state", 3);
+        String reasons = getString(response, "job-state-reasons");
+        int reported = -1;
+        int failures = 0;
+        while (true) {
+            if (state != reported) {
+                reported = state;
+                if (listener != null) {
+                    listener.jobStateChanged(jobId, stateName(state), reasons);
+                }
+            }
+            if (state == 9) {
+                return true;
+            } else if (state == 7 || state == 8) {
+                throw new PrintException("IPP job " + jobId + " " + stateName(state) + (reasons.isEmpty() ? "" : ": " + reasons));
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                LogIt.log(Level.WARNING, "IPP job " + jobId + " still " + stateName(state) + " after " + timeout + "ms, no longer following it");
+                return false;
+            }
+            Thread.sleep(Math.min(interval, remaining));
+            interval = Math.min(interval * 2, POLL_MAX);
+            Map<String, List<Object>> job;
+            try {
+                job = getJobAttributes(jobId, "job-state", "job-state-reasons");
+            } catch (PrintException | IOException ex) {
+                // the printer has the data, not being able to follow the job does not fail it
+                if (++failures >= MAX_POLL_FAILURES) {
+                    LogIt.log(Level.WARNING, "IPP job " + jobId + " state could not be read, no longer following it: " + ex.getMessage());
+                    return false;
+                }
+                continue;
+            }
+            failures = 0;
+            state = getInt(job, "job-state", state);
+            reasons = getString(job, "job-state-reasons");
+        }
+    }
+
+    /**
+     * Sends a Print-Job request, streaming the data after the attributes
+     *
+     * @param data the remaining bytes are sent, the position is not changed
+     * @param jobName
+     * @return the job attributes in the response
+     * @throws PrintException
+     * @throws IOException
+     */
+    public Map<String, List<Object>> printJob(ByteBuffer data, String jobName) throws PrintException, IOException {
+        IppRequest request = new IppRequest(PRINT_JOB);
+        request.attribute(NAME, "requesting-user-name", user);
+        request.attribute(NAME, "job-name", jobName);
+        request.attribute(MIME_MEDIA_TYPE, "document-format", getDocumentFormat());
+        return send(request, data);
+    }
+
+    /**
+     * @param jobId
+     * @param requested the attributes to return
+     * @return
+     * @throws PrintException
+     * @throws IOException
+     */
+    public Map<String, List<Object>> getJobAttributes(int jobId, String... requested) throws PrintException, IOException {
+        IppRequest request = new IppRequest(GET_JOB_ATTRIBUTES);
+        request.integer("job-id", jobId);
+        request.attribute(NAME, "requesting-user-name", user);
+        request.keywords("requested-attributes", requested);
+        return send(request, null);
+    }
+
+    /**
+     * @param requested the attributes to return, eg. "printer-state"
+     * @return
+     * @throws PrintException
+     * @throws IOException
+     */
+    public Map<String, List<Object>> getPrinterAttributes(String... requested) throws PrintException, IOException {
+        IppRequest request = new IppRequest(GET_PRINTER_ATTRIBUTES);
+        request.attribute(NAME, "requesting-user-name", user);
+        request.keywords("requested-attributes", requested);
+        return send(request, null);
+    }
+
+    /**
+     * Asks the printer whether it can take jobs
+     *
+     * @return the reason the printer cannot take jobs, or null if it can
+     * @throws PrintException
+     * @throws IOException if the printer cannot be reached
+     */
+    public String getUnavailableReason() throws PrintException, IOException {
+        Map<String, List<Object>> attributes = getPrinterAttributes("printer-state", "printer-state-reasons", "printer-is-accepting-jobs");
+        List<Object> accepting = attributes.get("printer-is-accepting-jobs");
+        if (accepting != null && Boolean.FALSE.equals(accepting.get(0))) {
+            return "not accepting jobs";
+        }
+        // 5 is stopped, 3 and 4 are idle and processing
+        if (getInt(attributes, "printer-state", 3) == 5) {
+            String reasons = getString(attributes, "printer-state-reasons");
+            return reasons.isEmpty() || reasons.equals("none") ? "stopped" : "stopped: " + reasons;
+        }
+        return null;
+    }
+
+    /**
+     * Asks the printer which raw format it takes the first time it is needed
+     */
+    private String getDocumentFormat() throws PrintException, IOException {
+        String format = documentFormat;
+        if (format == null) {
+            List<Object> supported = getPrinterAttributes("document-format-supported").get("document-format-supported");
+            if (supported == null || supported.contains(RAW_FORMAT)) {
+                format = RAW_FORMAT;
+            } else if (supported.contains(CUPS_RAW_FORMAT)) {
+                format = CUPS_RAW_FORMAT;
+            } else {
+                throw new PrintException("IPP printer " + printerUri + " does not accept raw data");
+            }
+            documentFormat = format;
+        }
+        return format;
+    }
+
+    private Map<String, List<Object>> send(IppRequest request, ByteBuffer data) throws PrintException, IOException {
+        byte[] header = request.toByteArray();
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        try {
+            conn.setConnectTimeout(CONNECT_TIMEOUT);
+            conn.setReadTimeout(READ_TIMEOUT);
+            conn.setDoOutput(true);
+            conn.setRequestMethod("POST");
+            conn.setRequestProperty("Content-Type", "application/ipp");
+            // the job data is written straight to the socket rather than buffered
+            conn.setFixedLengthStreamingMode((long) header.length + (data != null ? data.remaining() : 0));
+            try (OutputStream out = conn.getOutputStream()) {
+                out.write(header);
+                if (data != null) {
+                    out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                }
+            }
+            int code = conn.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new PrintException("IPP printer " + printerUri + " returned HTTP " + code + " " + conn.getResponseMessage());
+            }
+            try (InputStream in = conn.getInputStream()) {
+                return readResponse(new DataInputStream(new BufferedInputStream(in)));
+            }
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Reads the attributes of a response, all groups together
+     */
+    private Map<String, List<Object>> readResponse(DataInputStream in) throws PrintException, IOException {
+        in.readUnsignedShort(); // version
+        int status = in.readUnsignedShort();
+        in.readInt(); // request id
+        Map<String, List<Object>> attributes = new LinkedHashMap<>();
+        List<Object> values = null;
+        int tag;
+        while ((tag = in.readUnsignedByte()) != END_OF_ATTRIBUTES) {
+            if (tag < 0x10) {
+                // start of the next attribute group
+                continue;
+            }
+            String name = new String(readBytes(in, in.readUnsignedShort()), UTF8);
+            byte[] value = readBytes(in, in.readUnsignedShort());
+            if (!name.isEmpty()) {
+                values = new ArrayList<>();
+                attributes.put(name, values);
+            } else if (values == null) {
+                throw new IOException("Invalid IPP response");
+            }
+            values.add(decode(tag, value));
+        }
+        // statuses up to 0x00FF are successful
+        if (status > 0x00FF) {
+            String message = getString(attributes, "status-message");
+            throw new PrintException("IPP printer " + printerUri + " returned status 0x" + String.format("%04x", status)
+                    + (message.isEmpty() ? "" : ": " + message));
+        }
+        return attributes;
+    }
+
+    private static byte[] readBytes(DataInputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        try {
+            in.readFully(bytes);
+        } catch (EOFException ex) {
+            throw new IOException("Truncated IPP response", ex);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return an Integer, Boolean or String for the value tags used here,
+     * otherwise the raw bytes
+     */
+    private static Object decode(int tag, byte[] value) {
+        switch (tag) {
+            case INTEGER:
+            case ENUM:
+                return value.length == 4 ? ((value[0] & 0xFF) << 24) | ((value[1] & 0xFF) << 16) | ((value[2] & 0xFF) << 8) | (value[3] & 0xFF) : 0;
+            case BOOLEAN:
+                return value.length == 1 && value[0] != 0;
+            case TEXT_WITH_LANGUAGE:
+            case NAME_WITH_LANGUAGE:
+                // language length, language, text length, text
+                int language = value.length >= 2 ? ((value[0] & 0xFF) << 8) | (value[1] & 0xFF) : 0;
+                return value.length >= language + 4 ? new String(value, language + 4, value.length - language - 4, UTF8) : "";
+            default:
+                // the character string tags, eg. keyword, uri and mimeMediaType
+                return tag >= 0x40 && tag <= 0x4F ? new String(value, UTF8) : value;
+        }
+    }
+
+    private static int getInt(Map<String, List<Object>> attributes, String name, int def) {
+        List<Object> values = attributes.get(name);
+        return values != null && !values.isEmpty() && values.get(0) instanceof Integer ? (Integer) values.get(0) : def;
+    }
+
+    private static String getString(Map<String, List<Object>> attributes, String name) {
+        List<Object> values = attributes.get(name);
+        if (values == null) {
+            return "";
+        }
+        StringBuilder joined = new StringBuilder();
+        for (Object value : values) {
+            if (value instanceof String) {
+                if (joined.length() > 0) {
+                    joined.append(',');
+                }
+                joined.append(value);
+            }
+        }
+        return joined.toString();
+    }
+
+    /**
+     * @param state an IPP job-state enum value
+     * @return its keyword, eg. "completed"
+     */
+    static String stateName(int state) {
+        return state >= 0 && state < JOB_STATES.length && JOB_STATES[state] != null ? JOB_STATES[state] : "unknown";
+    }
+
+    /**
+     * The encoded operation attributes of a request
+     */
+    private class IppRequest {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        IppRequest(int operation) throws IOException {
+            out.writeShort(0x0101);
+            out.writeShort(operation);
+            out.writeInt(requestIds.incrementAndGet());
+            out.writeByte(OPERATION_ATTRIBUTES);
+            // these three must come first, in this order
+            attribute(CHARSET, "attributes-charset", "utf-8");
+            attribute(NATURAL_LANGUAGE, "attributes-natural-language", "en");
+            attribute(URI_TAG, "printer-uri", printerUri);
+        }
+
+        void attribute(int tag, String name, String value) throws IOException {
+            write(tag, name, value.getBytes(UTF8));
+        }
+
+        void integer(String name, int value) throws IOException {
+            write(INTEGER, name, new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value});
+        }
+
+        void keywords(String name, String... values) throws IOException {
+            for (int i = 0; i < values.length; i++) {
+                // later values of the same attribute have no name
+                write(KEYWORD, i == 0 ? name : "", values[i].getBytes(UTF8));
+            }
+        }
+
+        private void write(int tag, String name, byte[] value) throws IOException {
+            byte[] encodedName = name.getBytes(UTF8);
+            out.writeByte(tag);
+            out.writeShort(encodedName.length);
+            out.write(encodedName);
+            out.writeShort(value.length);
+            out.write(value);
+        }
+
+        byte[] toByteArray() throws IOException {
+            out.writeByte(END_OF_ATTRIBUTES);
+            out.flush();
+            return bytes.toByteArray();
+        }
+    }
+}
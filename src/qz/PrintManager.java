@@ -36,6 +36,7 @@ import javax.imageio.ImageIO;
 import javax.print.PrintException;
 import javax.print.PrintService;
 import javax.print.PrintServiceLookup;
+import javax.print.event.PrintJobListener;
 import javax.xml.parsers.ParserConfigurationException;
 import jssc.SerialPortException;
 import org.w3c.dom.DOMException;
@@ -60,6 +61,7 @@ import qz.reflection.ReflectException;
 public class PrintManager {
 
     public static final String VERSION = "1.8.0";
+    private static final int MAX_LOGGED_BYTES = 1024;
 
     private PrintService ps;
     private PrintRaw printRaw;
@@ -158,6 +160,24 @@ public class PrintManager {
         }
     }
 
+    /**
+     * Appends already decoded raw data to the buffer
+     *
+     * @param data
+     */
+    public void append(byte[] data) {
+        getPrintRaw().append(data);
+    }
+
+    /**
+     * Appends already decoded raw data to the buffer, without copying it
+     *
+     * @param data
+     */
+    public void append(ByteBuffer data) {
+        getPrintRaw().append(data);
+    }
+
     public void appendHTMLFile(String url) throws IOException {
         try {
             appendHTML(new String(FileUtilities.readRawFile(url), charset.name()));
@@ -788,6 +808,43 @@ public class PrintManager {
         return true;
     }
 
+    /**
+     * Uses a print service that has already been looked up for the given
+     * printer name, so printing to that name skips the printer search
+     *
+     * @param printer
+     * @param pservice
+     */
+    public void setPrinter(String printer, PrintService pservice) {
+        this.printer = printer;
+        PrintManager.this.setPrintService(pservice);
+    }
+
+    /**
+     * Follows raw print jobs through the print service, the listener is
+     * called as the service reports progress
+     *
+     * @param listener
+     */
+    public void setPrintJobListener(PrintJobListener listener) {
+        getPrintRaw().setPrintJobListener(listener);
+    }
+
+    /**
+     * @param timeout time (ms) a raw print waits for the print service to
+     * finish the job, 0 waits indefinitely
+     */
+    public void setPrintTimeout(long timeout) {
+        getPrintRaw().setCompletionTimeout(timeout);
+    }
+
+    /**
+     * @return how the last raw print ended, see PrintRaw.getLastJobState()
+     */
+    public PrintRaw.JobState getLastJobState() {
+        return getPrintRaw().getLastJobState();
+    }
+
     public void findPrinters() {
         logFindPrinter();
         if (printer == null) {
@@ -823,6 +880,22 @@ public class PrintManager {
     }
 
     public boolean send(String portName, String data) {
+        try {
+            return send(portName, Base64.decode(data));
+        } catch (IOException e) {
+            this.set(e);
+            return false;
+        }
+    }
+
+    /**
+     * Sends decoded data to the specified serial port, opening it if needed
+     *
+     * @param portName
+     * @param data
+     * @return
+     */
+    public boolean send(String portName, byte[] data) {
         try {
             // if port is not open or targering a different port, try to connect it
             if (!getSerialIO().isOpen() || !getSerialIO().getPortName().equals(portName)) {
@@ -832,9 +905,9 @@ public class PrintManager {
             }
             if (getSerialIO().getPortName().equals(portName)) {
                 //getSerialIO().append(data.getBytes(charset.name()));
-                getSerialIO().append(Base64.decode(data));
+                getSerialIO().append(data);
                 try {
-                    logCommands(new String(getSerialIO().getInputBuffer().getByteArray(), charset.name()));
+                    logCommands(getSerialIO().getInputBuffer().getByteArray());
                     getSerialIO().send();
                 } catch (Throwable t) {
                     this.set(t);
@@ -1243,11 +1316,17 @@ public class PrintManager {
     }
 
     private void logCommands(PrintRaw pr) {
-        logCommands(pr.getOutput());
+        logCommands(pr.getByteArray());
     }
 
     private void logCommands(byte[] commands) {
         try {
+            // only log the start of large jobs rather than copying the whole buffer
+            if (commands.length > MAX_LOGGED_BYTES) {
+                logCommands(new String(commands, 0, MAX_LOGGED_BYTES, charset.name())
+                        + "\r\n... (" + commands.length + " bytes)");
+                return;
+            }
             logCommands(new String(commands, charset.name()));
         } catch (UnsupportedEncodingException ex) {
             LogIt.log(Level.WARNING, "Cannot decode raw bytes for debug output. "
@@ -46,7 +46,6 @@ import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import javax.imageio.ImageIO;
 import javax.print.PrintService;
-import javax.print.attribute.Attribute;
 import javax.print.attribute.HashPrintRequestAttributeSet;
 import javax.print.attribute.standard.Copies;
 import javax.print.attribute.standard.MediaPrintableArea;
@@ -98,7 +97,7 @@ public class PrintPostScript implements Printable {
 
         // Echo some supported attributes to the screen
         if (logPostScriptFeatures.get()) {
-            logSupportedPrinterFeatures(job);
+            logSupportedPrinterFeatures(ps.get());
         }
 
         // Fixes 1" white border problem - May need tweaking
@@ -567,11 +566,8 @@ public class PrintPostScript implements Printable {
     }
 
     @SuppressWarnings("unchecked")
-    private void logSupportedPrinterFeatures(PrinterJob job) {
-        LogIt.log(Level.INFO, "Supported Printing Attributes:");
-        for (Class<?> cl : job.getPrintService().getSupportedAttributeCategories()) {
-            LogIt.log(Level.INFO, "   Attr type = " + cl + "=" + job.getPrintService().getDefaultAttributeValue((Class<? extends Attribute>) cl));
-        }
+    private void logSupportedPrinterFeatures(PrintService service) {
+        LogIt.log(Level.INFO, "Supported Printing Attributes: " + PrintServiceMatcher.getCapabilities(service));
     }
 
     public static void logSizeCalculations(PaperFormat p, float w, float h) {
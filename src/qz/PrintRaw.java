@@ -26,6 +26,7 @@
 package qz;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -35,9 +36,13 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import javax.print.DocFlavor;
@@ -49,6 +54,7 @@ import javax.print.attribute.DocAttributeSet;
 import javax.print.attribute.HashPrintRequestAttributeSet;
 import javax.print.attribute.PrintRequestAttributeSet;
 import javax.print.attribute.standard.JobName;
+import javax.print.event.PrintJobAdapter;
 import javax.print.event.PrintJobEvent;
 import javax.print.event.PrintJobListener;
 import qz.exception.InvalidFileTypeException;
@@ -63,6 +69,81 @@ import qz.exception.NullPrintServiceException;
  */
 public class PrintRaw {
 
+    /**
+     * How a job ended, as reported by the print service
+     */
+    public enum JobState {
+        SENT, COMPLETED, FAILED, CANCELED, NO_MORE_EVENTS;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT).replace('_', '-');
+        }
+    }
+
+    /**
+     * Follows one job, the print service's events complete it
+     */
+    private static final class Completion extends PrintJobAdapter {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile JobState state = null;
+        private volatile boolean sent = false;
+
+        private void finish(JobState state, PrintJobEvent pje) {
+            LogIt.log(pje);
+            if (this.state == null) {
+                this.state = state;
+            }
+            done.countDown();
+        }
+
+        @Override
+        public void printDataTransferCompleted(PrintJobEvent pje) {
+            LogIt.log(pje);
+            sent = true;
+        }
+
+        @Override
+        public void printJobCompleted(PrintJobEvent pje) {
+            finish(JobState.COMPLETED, pje);
+        }
+
+        @Override
+        public void printJobFailed(PrintJobEvent pje) {
+            finish(JobState.FAILED, pje);
+        }
+
+        @Override
+        public void printJobCanceled(PrintJobEvent pje) {
+            finish(JobState.CANCELED, pje);
+        }
+
+        @Override
+        public void printJobNoMoreEvents(PrintJobEvent pje) {
+            finish(JobState.NO_MORE_EVENTS, pje);
+        }
+
+        @Override
+        public void printJobRequiresAttention(PrintJobEvent pje) {
+            LogIt.log(pje);
+        }
+
+        /**
+         * @param timeout time (ms) to wait, 0 waits indefinitely
+         * @return the state the job ended in, SENT if the data was taken but
+         * the end of the job was not reported in time, otherwise null
+         */
+        JobState await(long timeout) throws InterruptedException {
+            if (timeout <= 0) {
+                done.await();
+            } else if (!done.await(timeout, TimeUnit.MILLISECONDS)) {
+                return sent ? JobState.SENT : null;
+            }
+            return state;
+        }
+    }
+
     private final static String ERR = "qz.PrintRaw.print() failed.";
     private final AtomicReference<DocFlavor> docFlavor = new AtomicReference<DocFlavor>(DocFlavor.BYTE_ARRAY.AUTOSENSE);
     private final AtomicReference<DocAttributeSet> docAttr = new AtomicReference<DocAttributeSet>(null);
@@ -70,13 +151,16 @@ public class PrintRaw {
     private final AtomicReference<PrintService> ps = new AtomicReference<PrintService>(null);
     //private final AtomicReference<String> rawCmds = new AtomicReference<String>(null);
     private final AtomicReference<ByteArrayBuilder> rawCmds = new AtomicReference<ByteArrayBuilder>(null);
-    private final AtomicBoolean isFinished = new AtomicBoolean(false);
+    // time (ms) to wait for the print service to finish a job, 0 waits indefinitely
+    private final AtomicLong completionTimeout = new AtomicLong(30000);
+    private final AtomicReference<JobState> lastJobState = new AtomicReference<JobState>(null);
     private final AtomicReference<Charset> charset = new AtomicReference<Charset>(Charset.defaultCharset());
     private final AtomicReference<String> jobName = new AtomicReference<String>("QZ-PRINT Raw Printing");
     private final AtomicReference<String> outputPath = new AtomicReference<String>(null);
     private AtomicReference<String> socketHost = new AtomicReference<String>(null);
     private AtomicReference<Integer> socketPort = new AtomicReference<Integer>(null);
     private final AtomicBoolean alternatePrint = new AtomicBoolean(false);
+    private final AtomicReference<PrintJobListener> jobListener = new AtomicReference<PrintJobListener>(null);
 
     public PrintRaw() {
     }
@@ -158,7 +242,7 @@ public class PrintRaw {
         LogIt.log("Printing to host " + socketHost.get() + ":" + socketPort.get());
         Socket socket = new Socket(socketHost.get(), socketPort.get());
         DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-        out.write(getRawCmds().getByteArray());
+        getRawCmds().writeTo(out);
         socket.close();
         socketHost = new AtomicReference<>(null);
         socketPort = new AtomicReference<>(null);
@@ -168,7 +252,7 @@ public class PrintRaw {
     public boolean printToFile() throws PrintException, IOException {
         LogIt.log("Printing to file: " + outputPath.get());
         OutputStream out = new FileOutputStream(outputPath.get());
-        out.write(this.getRawCmds().getByteArray());
+        this.getRawCmds().writeTo(out);
         out.close();
         return true;
     }
@@ -232,60 +316,42 @@ public class PrintRaw {
          doc = new SimpleDoc(printBytes, docFlavor.get(), docAttr.get());
          }*/
 
+        DocFlavor flavor = docFlavor.get();
+        if (flavor == DocFlavor.BYTE_ARRAY.AUTOSENSE) {
+            // send raw data the way this printer accepts it, checked once per printer
+            flavor = PrintServiceMatcher.getCapabilities(ps.get()).getRawFlavor();
+            if (flavor == null) {
+                throw new PrintException("Printer " + ps.get().getName() + " does not accept raw data");
+            }
+        }
         SimpleDoc doc;
-        if (data != null) {
-            doc = new SimpleDoc(data, docFlavor.get(), docAttr.get());
+        if (flavor.getRepresentationClassName().equals("java.io.InputStream")) {
+            doc = new SimpleDoc(data != null ? new ByteArrayInputStream(data) : getRawCmds().getInputStream(), flavor, docAttr.get());
         } else {
-            doc = new SimpleDoc(getRawCmds().getByteArray(), docFlavor.get(), docAttr.get());
+            doc = new SimpleDoc(data != null ? data : getRawCmds().getByteArray(), flavor, docAttr.get());
         }
 
         reqAttr.get().add(new JobName(jobName.get(), Locale.getDefault()));
         DocPrintJob pj = ps.get().createPrintJob();
-        pj.addPrintJobListener(new PrintJobListener() {
-            //@Override //JDK 1.6
-            public void printDataTransferCompleted(PrintJobEvent pje) {
-                LogIt.log(pje);
-                isFinished.set(true);
-            }
-
-            //@Override //JDK 1.6
-            public void printJobCompleted(PrintJobEvent pje) {
-                LogIt.log(pje);
-                isFinished.set(true);
-            }
-
-            //@Override //JDK 1.6
-            public void printJobFailed(PrintJobEvent pje) {
-                LogIt.log(pje);
-                isFinished.set(true);
-            }
-
-            //@Override //JDK 1.6
-            public void printJobCanceled(PrintJobEvent pje) {
-                LogIt.log(pje);
-                isFinished.set(true);
-            }
-
-            //@Override //JDK 1.6
-            public void printJobNoMoreEvents(PrintJobEvent pje) {
-                LogIt.log(pje);
-                isFinished.set(true);
-            }
-
-            //@Override //JDK 1.6
-            public void printJobRequiresAttention(PrintJobEvent pje) {
-                LogIt.log(pje);
-            }
-        });
+        // the caller's listener goes first, so it has seen the last event by the time print returns
+        if (jobListener.get() != null) {
+            pj.addPrintJobListener(jobListener.get());
+        }
+        Completion completion = new Completion();
+        pj.addPrintJobListener(completion);
 
         LogIt.log("Sending print job to printer: \"" + ps.get().getName() + "\"");
         pj.print(doc, reqAttr.get());
 
-        while (!isFinished.get()) {
-            Thread.sleep(100);
+        JobState state = completion.await(completionTimeout.get());
+        lastJobState.set(state);
+        if (state == null) {
+            throw new PrintException("Printer \"" + ps.get().getName() + "\" did not take the job within " + completionTimeout.get() + "ms");
+        } else if (state == JobState.FAILED || state == JobState.CANCELED) {
+            throw new PrintException("Print job " + state + " on printer \"" + ps.get().getName() + "\"");
         }
 
-        LogIt.log("Print job received by printer: \"" + ps.get().getName() + "\"");
+        LogIt.log("Print job " + state + ": \"" + ps.get().getName() + "\"");
 
         //clear(); - Ver 1.0.8+ : Should be done from Applet instead now
         return true;
@@ -455,6 +521,16 @@ public class PrintRaw {
         this.getRawCmds().append(b);
     }
 
+    /**
+     * Append the remaining bytes of the buffer to the raw stream of data,
+     * without copying them
+     *
+     * @param b
+     */
+    public void append(ByteBuffer b) {
+        this.getRawCmds().append(b);
+    }
+
     /**
      * Sets the
      * <code>Charset</code> (character set) to use, example "US-ASCII" for use
@@ -496,6 +572,33 @@ public class PrintRaw {
         this.jobName.set(jobName);
     }
 
+    /**
+     * Sets an extra listener to be added to each print job, so callers can
+     * follow the job through the print service
+     *
+     * @param listener
+     */
+    public void setPrintJobListener(PrintJobListener listener) {
+        this.jobListener.set(listener);
+    }
+
+    /**
+     * @param timeout time (ms) print() waits for the print service to finish
+     * a job, 0 waits indefinitely
+     */
+    public void setCompletionTimeout(long timeout) {
+        this.completionTimeout.set(timeout);
+    }
+
+    /**
+     * @return how the last job sent to the print service ended, SENT if the
+     * service took the data but did not report the end of the job in time,
+     * or null if it did not take the data
+     */
+    public JobState getLastJobState() {
+        return lastJobState.get();
+    }
+
     public void setAlternatePrinting(boolean alternatePrint) {
         this.alternatePrint.set(alternatePrint);
     }
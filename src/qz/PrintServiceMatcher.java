@@ -24,18 +24,154 @@
 
 package qz;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import javax.print.PrintService;
 import javax.print.PrintServiceLookup;
-import javax.print.attribute.PrintServiceAttributeSet;
 import javax.print.attribute.standard.PrinterName;
 
+/**
+ * Finds printers by name. The printer list is looked up once and kept in
+ * memory, it is refreshed when asked and, once startRefresh() is called, on a
+ * background schedule. Concurrent refreshes share a single lookup, and
+ * listeners are told which printers were added or removed.
+ *
+ * Names are resolved through an index built with each list and the results
+ * are remembered until the list changes, so printing to the same few
+ * printers does no searching. Printer capabilities are kept the same way.
+ */
 public class PrintServiceMatcher {
 
-    private static PrintService[] printers = null;
-    private static String printerListing = "";
+    /**
+     * Notified after a refresh that changed the printer list
+     */
+    public interface PrinterListener {
+
+        /**
+         * @param printers the new list of printer names
+         * @param added printers not in the previous list
+         * @param removed printers no longer in the list
+         */
+        void printersChanged(String[] printers, String[] added, String[] removed);
+    }
+
+    /**
+     * The result of one lookup and its name index, only the resolved names
+     * are added to afterwards
+     */
+    private static final class Snapshot {
+
+        final PrintService[] printers;
+        final String[] names;
+        final String listing;
+        // last time a lookup found this same list
+        volatile long checked = System.currentTimeMillis();
+        // lower case names, in the same order as printers
+        private final String[] keys;
+        // lower case full name to printer, the last printer wins as with the other tiers
+        private final HashMap<String, PrintService> exact = new HashMap<>();
+        private final ConcurrentHashMap<String, PrintService> resolved = new ConcurrentHashMap<>();
+        // printer name to capabilities, queried the first time they are needed
+        private final ConcurrentHashMap<String, PrinterCapabilities> capabilities = new ConcurrentHashMap<>();
+
+        Snapshot(PrintService[] printers) {
+            this.printers = printers;
+            this.names = new String[printers.length];
+            this.keys = new String[printers.length];
+            StringBuilder csv = new StringBuilder();
+            for (int i = 0; i < printers.length; i++) {
+                PrinterName name = printers[i].getAttribute(PrinterName.class);
+                names[i] = name != null ? name.getValue() : printers[i].getName();
+                keys[i] = normalize(names[i]);
+                exact.put(keys[i], printers[i]);
+                if (i > 0) {
+                    csv.append(',');
+                }
+                csv.append(names[i]);
+            }
+            this.listing = csv.toString();
+        }
+
+        /**
+         * @param name the requested printer name
+         * @return the best match, or null if no printer name contains it
+         */
+        PrintService resolve(String name) {
+            String key = normalize(name);
+            PrintService service = resolved.get(key);
+            if (service == null) {
+                service = search(key);
+                if (service != null) {
+                    resolved.put(key, service);
+                    LogIt.log("Printer " + name + " resolved to " + service.getName());
+                }
+            }
+            return service;
+        }
+
+        /**
+         * Matches in order of preference: the whole name, a whole word, the
+         * start of a word, then anywhere in the name
+         */
+        private PrintService search(String key) {
+            PrintService service = exact.get(key);
+            if (service != null || key.isEmpty()) {
+                return service;
+            }
+            PrintService word = null;
+            PrintService prefix = null;
+            PrintService partial = null;
+            for (int i = 0; i < keys.length; i++) {
+                switch (matchTier(keys[i], key)) {
+                    case 3:
+                        word = printers[i];
+                        break;
+                    case 2:
+                        prefix = printers[i];
+                        break;
+                    case 1:
+                        partial = printers[i];
+                        break;
+                    default:
+                }
+            }
+            return word != null ? word : prefix != null ? prefix : partial;
+        }
+
+        PrinterCapabilities capabilities(PrintService service) {
+            PrinterCapabilities caps = capabilities.get(service.getName());
+            if (caps == null) {
+                caps = new PrinterCapabilities(service);
+                PrinterCapabilities existing = capabilities.putIfAbsent(service.getName(), caps);
+                if (existing != null) {
+                    caps = existing;
+                }
+            }
+            return caps;
+        }
+    }
+
+    private static volatile Snapshot snapshot = null;
+    // held while looking up printers, so only one lookup runs at a time
+    private static final Object refreshLock = new Object();
+    // number of lookups finished, a caller that waited for a lookup uses its result
+    private static volatile long refreshes = 0;
+    private static final CopyOnWriteArrayList<PrinterListener> listeners = new CopyOnWriteArrayList<>();
+    private static ScheduledExecutorService scheduler = null;
+    // a name that is not found looks the printers up again if the list is older than this (ms)
+    private static final long MISS_REFRESH = 2000;
 
     /**
      * Finds a printer in the PrintServices listing and returns it's respective
@@ -46,89 +182,102 @@ public class PrintServiceMatcher {
      * @return PrintService ps for RawPrint(ps, cmds)
      */
     public static PrintService findPrinter(Object o) {
-        PrintService exact = null;
-        PrintService begins = null;
-        PrintService partial = null;
-        
         String printerName;
         if (o == null) {
             return null;
-        } else if (o instanceof String) {
-            printerName = "\\Q" + (String) o + "\\E";
         } else if (o instanceof PrintService) {
             return (PrintService) o;
         } else {
-            printerName = "\\Q" + o.toString() + "\\E";
-        }
-
-        // Get print service list
-        getPrinterList();
-
-        LogIt.log(Level.INFO, "Found " + printers.length + " attached printers.");
-        LogIt.log(Level.INFO, "Printer specified: " + printerName);
-
-        Pattern p1 = Pattern.compile("\\b" + printerName + "\\b", Pattern.CASE_INSENSITIVE);
-        Pattern p2 = Pattern.compile("\\b" + printerName, Pattern.CASE_INSENSITIVE);
-        Pattern p3 = Pattern.compile(printerName, Pattern.CASE_INSENSITIVE);
-        
-        // Search for best match by name
-        for (PrintService ps : printers) {
-            String sysPrinter = ((PrinterName) ps.getAttribute(PrinterName.class)).getValue();
-
-            Matcher m1 = p1.matcher(sysPrinter);
-            Matcher m2 = p2.matcher(sysPrinter);
-            Matcher m3 = p3.matcher(sysPrinter);
-
-            if (m1.find()) {
-                exact = ps;
-                LogIt.log("Printer name match: " + sysPrinter);
-            } else if (m2.find()) {
-                begins = ps;
-                LogIt.log("Printer name beginning match: " + sysPrinter);
-            } else if (m3.find()) {
-                partial = ps;
-                LogIt.log("Printer name partial match: " + sysPrinter);
-            }
+            printerName = o.toString();
+        }
+
+        Snapshot current = snapshot;
+        PrintService match = current == null ? null : current.resolve(printerName);
+        if (match == null && (current == null || System.currentTimeMillis() - current.checked > MISS_REFRESH)) {
+            // the printer may have been added since the list was cached
+            match = refresh().resolve(printerName);
         }
-        
-        // Return closest match
-        if (exact != null) {
-            LogIt.log("Using best match: " + exact.getName());
-            return exact;
-        } else if (begins != null) {
-            LogIt.log("Using best match: " + begins.getName());
-            return begins;
-        } else if (partial != null) {
-            LogIt.log("Using best match: " + partial.getName());
-            return partial;
+        if (match == null) {
+            // Couldn't find printer
+            LogIt.log(Level.WARNING, "Printer not found: " + printerName);
         }
+        return match;
+    }
 
-        // Couldn't find printer
-        LogIt.log(Level.WARNING, "Printer not found: " + printerName);
-        return null;
+    /**
+     * Returns what a printer supports. Capabilities are queried once per
+     * printer and kept until the printer list changes.
+     *
+     * @param service
+     * @return
+     */
+    public static PrinterCapabilities getCapabilities(PrintService service) {
+        Snapshot current = snapshot;
+        return current == null ? new PrinterCapabilities(service) : current.capabilities(service);
+    }
+
+    private static String normalize(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @param name a lower case printer name
+     * @param key the lower case name searched for
+     * @return 3 if the key is a whole word in the name, 2 if it starts a word,
+     * 1 if it appears elsewhere, 0 if it does not appear
+     */
+    static int matchTier(String name, String key) {
+        int tier = 0;
+        for (int at = name.indexOf(key); at >= 0 && tier < 3; at = name.indexOf(key, at + 1)) {
+            if (isBoundary(name, at)) {
+                tier = Math.max(tier, isBoundary(name, at + key.length()) ? 3 : 2);
+            } else {
+                tier = Math.max(tier, 1);
+            }
+        }
+        return tier;
+    }
+
+    /**
+     * @return true if a word starts or ends at the index, as with \b in a
+     * regular expression
+     */
+    private static boolean isBoundary(String s, int index) {
+        boolean before = index > 0 && isWordChar(s.charAt(index - 1));
+        boolean after = index < s.length() && isWordChar(s.charAt(index));
+        return before != after;
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
     }
 
     public static PrintService[] getPrinterList() {
         return getPrinterArray(false);
     }
 
+    /**
+     * @param forceSearch look the printers up again rather than using the
+     * cached list
+     * @return
+     */
     public static PrintService[] getPrinterArray(boolean forceSearch) {
-        if (forceSearch || printers == null || printers.length == 0) {
-            printerListing = "";
-            PrintService[] services = PrintServiceLookup.lookupPrintServices(null, null);
-                   
-            for (int i = 0; i < services.length; i++) {
-                PrintServiceAttributeSet psa = services[i].getAttributes();
-                printerListing  = printerListing  + psa.get(PrinterName.class);
-                if (i != (services.length - 1)) {
-                    printerListing  = printerListing  + ",";
-                }
-            }
+        Snapshot current = snapshot;
+        if (forceSearch || current == null || current.printers.length == 0) {
+            current = refresh();
+        }
+        return current.printers;
+    }
 
-            printers = services;
+    /**
+     * @return the names of the printers in the cached list
+     */
+    public static String[] getPrinterNames() {
+        Snapshot current = snapshot;
+        if (current == null) {
+            current = refresh();
         }
-        
-        return printers;
+        return current.names.clone();
     }
 
     /**
@@ -136,7 +285,110 @@ public class PrintServiceMatcher {
      * @return
      */
     public static String getPrinterListing() {
-        return printerListing;
+        Snapshot current = snapshot;
+        return current == null ? "" : current.listing;
+    }
+
+    /**
+     * Looks the printers up again. If a lookup is already running the caller
+     * waits for it and uses its result instead of starting another.
+     *
+     * @return the new list
+     */
+    private static Snapshot refresh() {
+        long seen = refreshes;
+        Snapshot previous;
+        Snapshot current;
+        synchronized (refreshLock) {
+            if (refreshes != seen && snapshot != null) {
+                return snapshot;
+            }
+            previous = snapshot;
+            current = new Snapshot(PrintServiceLookup.lookupPrintServices(null, null));
+            if (previous != null && previous.listing.equals(current.listing)) {
+                // unchanged, keep the resolved names
+                previous.checked = current.checked;
+                current = previous;
+            }
+            snapshot = current;
+            refreshes++;
+        }
+        if (previous != null && !previous.listing.equals(current.listing)) {
+            notifyListeners(previous, current);
+        }
+        return current;
+    }
+
+    private static void notifyListeners(Snapshot previous, Snapshot current) {
+        String[] added = difference(current.names, previous.names);
+        String[] removed = difference(previous.names, current.names);
+        LogIt.log("Printers changed, added: " + Arrays.toString(added) + " removed: " + Arrays.toString(removed));
+        for (PrinterListener listener : listeners) {
+            try {
+                listener.printersChanged(current.names.clone(), added, removed);
+            } catch (RuntimeException ex) {
+                LogIt.log(Level.WARNING, "Printer listener failed", ex);
+            }
+        }
+    }
+
+    /**
+     * @return the names in a that are not in b
+     */
+    private static String[] difference(String[] a, String[] b) {
+        Set<String> exclude = new HashSet<>(Arrays.asList(b));
+        List<String> result = new ArrayList<>();
+        for (String name : a) {
+            if (!exclude.contains(name)) {
+                result.add(name);
+            }
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    public static void addListener(PrinterListener listener) {
+        listeners.add(listener);
+    }
+
+    public static void removeListener(PrinterListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Refreshes the printer list in the background, so changes are noticed
+     * without a request asking for them
+     *
+     * @param interval ms between lookups
+     */
+    public static synchronized void startRefresh(long interval) {
+        if (scheduler != null || interval <= 0) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "printer-refresh");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } catch (RuntimeException ex) {
+                    LogIt.log(Level.WARNING, "Printer refresh failed", ex);
+                }
+            }
+        }, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized void stopRefresh() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
     }
 
     /*
@@ -0,0 +1,163 @@
+/**
+ * This file is part of WebPrint
+ *
+ * @author Michael Wallace
+ *
+ * Copyright (C) 2015 Michael Wallace, WallaceIT
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the GNU Lesser General Public License (LGPL)
+ * version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ */
+package qz;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import javax.print.DocFlavor;
+import javax.print.PrintService;
+import javax.print.attribute.standard.ColorSupported;
+import javax.print.attribute.standard.Copies;
+import javax.print.attribute.standard.CopiesSupported;
+import javax.print.attribute.standard.Media;
+import javax.print.attribute.standard.MediaSizeName;
+import javax.print.attribute.standard.PrinterResolution;
+import qz.json.JSONArray;
+import qz.json.JSONObject;
+
+/**
+ * What a printer supports, queried once and kept with the printer list by
+ * PrintServiceMatcher, as asking the print service can be slow. Jobs use it
+ * to pick how data is sent to the printer.
+ *
+ * @author michael
+ */
+public final class PrinterCapabilities {
+
+    private final String name;
+    private final List<String> flavors;
+    private final DocFlavor rawFlavor;
+    private final List<String> media;
+    private final List<String> resolutions;
+    private final boolean copies;
+    private final int maxCopies;
+    private final boolean color;
+
+    PrinterCapabilities(PrintService service) {
+        this.name = service.getName();
+        Set<String> mimeTypes = new LinkedHashSet<>();
+        for (DocFlavor flavor : service.getSupportedDocFlavors()) {
+            mimeTypes.add(flavor.getMimeType());
+        }
+        this.flavors = Collections.unmodifiableList(new ArrayList<>(mimeTypes));
+        // raw data is passed through as it is, a byte array needs no copying
+        if (service.isDocFlavorSupported(DocFlavor.BYTE_ARRAY.AUTOSENSE)) {
+            rawFlavor = DocFlavor.BYTE_ARRAY.AUTOSENSE;
+        } else if (service.isDocFlavorSupported(DocFlavor.INPUT_STREAM.AUTOSENSE)) {
+            rawFlavor = DocFlavor.INPUT_STREAM.AUTOSENSE;
+        } else {
+            rawFlavor = null;
+        }
+        List<String> sizes = new ArrayList<>();
+        Object supportedMedia = service.getSupportedAttributeValues(Media.class, null, null);
+        if (supportedMedia instanceof Media[]) {
+            for (Media m : (Media[]) supportedMedia) {
+                if (m instanceof MediaSizeName) {
+                    sizes.add(m.toString());
+                }
+            }
+        }
+        this.media = Collections.unmodifiableList(sizes);
+        List<String> dpi = new ArrayList<>();
+        Object supportedResolutions = service.getSupportedAttributeValues(PrinterResolution.class, null, null);
+        if (supportedResolutions instanceof PrinterResolution[]) {
+            for (PrinterResolution r : (PrinterResolution[]) supportedResolutions) {
+                dpi.add(r.getCrossFeedResolution(PrinterResolution.DPI) + "x" + r.getFeedResolution(PrinterResolution.DPI));
+            }
+        }
+        this.resolutions = Collections.unmodifiableList(dpi);
+        this.copies = service.isAttributeCategorySupported(Copies.class);
+        int max = 1;
+        Object supportedCopies = service.getSupportedAttributeValues(Copies.class, null, null);
+        if (supportedCopies instanceof CopiesSupported) {
+            int[][] ranges = ((CopiesSupported) supportedCopies).getMembers();
+            for (int[] range : ranges) {
+                max = Math.max(max, range[1]);
+            }
+        }
+        this.maxCopies = max;
+        this.color = service.getAttribute(ColorSupported.class) == ColorSupported.SUPPORTED;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the MIME types the printer accepts
+     */
+    public List<String> getFlavors() {
+        return flavors;
+    }
+
+    /**
+     * @return the flavor to send raw data with, or null if the printer does
+     * not accept raw data
+     */
+    public DocFlavor getRawFlavor() {
+        return rawFlavor;
+    }
+
+    /**
+     * @return the supported paper sizes, eg. "iso-a4"
+     */
+    public List<String> getMedia() {
+        return media;
+    }
+
+    /**
+     * @return the supported resolutions in dpi, eg. "600x600"
+     */
+    public List<String> getResolutions() {
+        return resolutions;
+    }
+
+    public boolean isCopiesSupported() {
+        return copies;
+    }
+
+    public int getMaxCopies() {
+        return maxCopies;
+    }
+
+    public boolean isColor() {
+        return color;
+    }
+
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("name", name);
+        json.put("raw", rawFlavor != null);
+        json.put("flavors", new JSONArray(flavors));
+        json.put("media", new JSONArray(media));
+        json.put("resolutions", new JSONArray(resolutions));
+        json.put("copies", copies);
+        json.put("maxCopies", maxCopies);
+        json.put("color", color);
+        return json;
+    }
+
+    @Override
+    public String toString() {
+        return toJSON().toString();
+    }
+}
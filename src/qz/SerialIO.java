@@ -37,6 +37,9 @@ public class SerialIO {
     
     private byte[] output;
     
+    // Notified whenever a complete response has been read from the port
+    private OutputListener outputListener;
+    
     private SerialPort port;
     private String serialPorts;
     private String[] portArray;
@@ -85,6 +88,15 @@ public class SerialIO {
         output = null;
     }
     
+    /**
+     * Sets a listener to be called with each response read from the port,
+     * in addition to it being available from <code>getOutput()</code>
+     * @param listener 
+     */
+    public void setOutputListener(OutputListener listener) {
+        this.outputListener = listener;
+    }
+    
     private ByteArrayBuilder getOutputBuffer() {
         if (this.outputBuffer == null) {
             this.outputBuffer = new ByteArrayBuilder();
@@ -240,6 +252,9 @@ public class SerialIO {
                     output = new byte[_end - _begin];
                     System.arraycopy(getOutputBuffer().getByteArray(), _begin, output, 0, _end - _begin);
                     getOutputBuffer().clear();
+                    if (outputListener != null) {
+                        outputListener.serialOutput(portName, output);
+                    }
                 }
                 
             }
@@ -343,4 +358,12 @@ public class SerialIO {
        port.writeBytes(b.getByteArray());
     }*/
     
+    
+    /**
+     * Receives responses read from a serial port
+     */
+    public interface OutputListener {
+        
+        void serialOutput(String portName, byte[] output);
+    }
 }
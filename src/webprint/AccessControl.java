@@ -19,71 +19,175 @@
 package webprint;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import qz.json.JSONException;
 import qz.json.JSONObject;
 
 /**
+ * The origins allowed to use the server and their cookies. Lookups read a
+ * concurrent map without locking. Changes are written to webprint_acl.json
+ * on a background thread shortly after they are made, so a burst of changes
+ * is saved once, and the file is replaced atomically so it is never seen half
+ * written. Changes made to the file by another process are picked up every
+ * few seconds.
+ *
+ * Allowed origins are given a signed token (see TokenSigner) instead of a
+ * random cookie. Tokens are only accepted for origins in the ACL, so removing
+ * an origin still revokes it, unless auth.stateless is set, in which case any
+ * token signed with the secret is accepted. Cookies issued by older versions
+ * keep working.
  *
  * @author michael
  */
 public class AccessControl {
 
     static String fileloc = Main.getUserDataPath() + "webprint_acl.json";
-    JSONObject aclmap;
+    // delay (ms) before changes are saved, so several changes are written together
+    private static final long SAVE_DELAY = 500;
+    // interval (ms) between checks for changes to the file
+    private static final long RELOAD_INTERVAL = 3000;
+
+    private final ConcurrentHashMap<String, String> aclmap = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService saver;
+    private final TokenSigner tokens;
+    private final boolean stateless;
+    private final AtomicBoolean saveScheduled = new AtomicBoolean(false);
+    // modification time and length of the file when it was last read or written
+    private long fileModified;
+    private long fileLength;
 
     public AccessControl() {
+        ServerConfig config = new ServerConfig();
+        TokenSigner signer = null;
+        try {
+            signer = new TokenSigner(config);
+        } catch (IOException | NoSuchAlgorithmException ex) {
+            Logger.getLogger(AccessControl.class.getName()).log(Level.SEVERE, "Signed tokens disabled", ex);
+        }
+        tokens = signer;
+        stateless = signer != null && config.getBoolean("auth.stateless", false);
         this.loadAcl();
+        saver = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "webprint-acl");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        saver.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                loadAcl();
+            }
+        }, RELOAD_INTERVAL, RELOAD_INTERVAL, TimeUnit.MILLISECONDS);
     }
-    
-    public String[] getAcl(){
-        ArrayList<String> list = new ArrayList<>();
-        Iterator iterator = aclmap.keys();
-        while (iterator.hasNext()){
-            list.add((String) iterator.next());
-        }
-        return list.toArray(new String[list.size()]);
+
+    public String[] getAcl() {
+        return aclmap.keySet().toArray(new String[0]);
     }
 
-    private void loadAcl() {
+    /**
+     * Reads the file if it changed since it was last read or written. Entries
+     * are added, updated and removed to match it, while changes that are
+     * waiting to be saved are kept.
+     */
+    private synchronized void loadAcl() {
         File f = new File(fileloc);
-        if (f.exists() && !f.isDirectory()) {
-            String content;
-            try {
-                content = readFile(fileloc, Charset.defaultCharset());
-                aclmap = new JSONObject(content);
-            } catch (IOException ex) {
-                Logger.getLogger(AccessControl.class.getName()).log(Level.SEVERE, null, ex);
-                aclmap = new JSONObject();
+        if (!f.exists() || f.isDirectory() || saveScheduled.get()) {
+            return;
+        }
+        if (f.lastModified() == fileModified && f.length() == fileLength) {
+            return;
+        }
+        fileModified = f.lastModified();
+        fileLength = f.length();
+        JSONObject stored;
+        try {
+            stored = new JSONObject(readFile(fileloc, Charset.forName("UTF-8")));
+        } catch (IOException | JSONException ex) {
+            Logger.getLogger(AccessControl.class.getName()).log(Level.SEVERE, null, ex);
+            return;
+        }
+        Iterator<?> keys = stored.keys();
+        while (keys.hasNext()) {
+            String origin = (String) keys.next();
+            aclmap.put(origin, stored.getString(origin));
+        }
+        Iterator<String> it = aclmap.keySet().iterator();
+        while (it.hasNext()) {
+            if (!stored.has(it.next())) {
+                it.remove();
             }
-        } else {
-            aclmap = new JSONObject();
         }
     }
 
-    private void saveAcl() {
-        FileWriter fw = null;
+    /**
+     * Saves the ACL shortly, unless a save is already waiting
+     */
+    private void scheduleSave() {
+        if (saveScheduled.compareAndSet(false, true)) {
+            saver.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    saveAcl();
+                }
+            }, SAVE_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes the ACL to a temporary file and moves it over the old one
+     */
+    private synchronized void saveAcl() {
+        // cleared first, so a change made while writing schedules another save
+        saveScheduled.set(false);
+        JSONObject json = new JSONObject();
+        for (Map.Entry<String, String> entry : aclmap.entrySet()) {
+            json.put(entry.getKey(), entry.getValue());
+        }
+        Path target = Paths.get(fileloc);
+        Path temp = Paths.get(fileloc + ".tmp");
         try {
-            String aclstring = aclmap.toString();
-            File newTextFile = new File(fileloc);
-            fw = new FileWriter(newTextFile);
-            fw.write(aclstring);
-            fw.close();
-        } catch (IOException ex) {
-            Logger.getLogger(AccessControl.class.getName()).log(Level.SEVERE, null, ex);
-        } finally {
+            Files.write(temp, json.toString().getBytes(Charset.forName("UTF-8")));
             try {
-                fw.close();
-            } catch (IOException ex) {
-                Logger.getLogger(AccessControl.class.getName()).log(Level.SEVERE, null, ex);
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
             }
+            File f = target.toFile();
+            fileModified = f.lastModified();
+            fileLength = f.length();
+        } catch (IOException ex) {
+            Logger.getLogger(AccessControl.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Saves any waiting changes now, eg. when the app exits
+     */
+    public void flush() {
+        if (saveScheduled.get()) {
+            saveAcl();
         }
     }
 
@@ -93,23 +197,54 @@ public class AccessControl {
         return new String(encoded, encoding);
     }
 
-    public void add(String origin, String cookie) {
+    /**
+     * Allows an origin
+     *
+     * @param origin
+     * @return the token or cookie the origin must send with its requests
+     */
+    public String grant(String origin) {
+        String cookie = tokens != null ? tokens.issue(origin) : UUID.randomUUID().toString();
+        add(origin, cookie);
+        return cookie;
+    }
+
+    /**
+     * @param origin an allowed origin
+     * @param cookie its current token
+     * @return a new token if the current one is past half its lifetime,
+     * otherwise null
+     */
+    public String renew(String origin, String cookie) {
+        if (tokens == null) {
+            return null;
+        }
+        long issued = tokens.verify(origin, cookie);
+        return issued >= 0 && tokens.isAging(issued) ? grant(origin) : null;
+    }
+
+    // changes hold the lock so a reload cannot undo them
+    public synchronized void add(String origin, String cookie) {
         aclmap.put(origin, cookie);
-        this.saveAcl();
+        this.scheduleSave();
     }
 
-    public void remove(String origin) {
+    public synchronized void remove(String origin) {
         aclmap.remove(origin);
-        this.saveAcl();
+        this.scheduleSave();
     }
 
     public boolean isAllowed(String origin, String cookie) {
-        if (aclmap.has(origin)) {
-            if (aclmap.get(origin).equals(cookie)) {
-                return true;
-            }
+        String allowed = aclmap.get(origin);
+        if (allowed == null && !stateless) {
+            return false;
+        }
+        if (tokens != null && cookie.indexOf('.') >= 0) {
+            return tokens.verify(origin, cookie) >= 0;
         }
-        return false;
+        // a cookie from an older version, compared in constant time
+        return allowed != null && allowed.indexOf('.') < 0
+                && MessageDigest.isEqual(allowed.getBytes(Charset.forName("UTF-8")), cookie.getBytes(Charset.forName("UTF-8")));
     }
 
 }
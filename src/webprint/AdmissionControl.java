@@ -0,0 +1,168 @@
+/**
+ * This file is part of WebPrint
+ *
+ * @author Michael Wallace
+ *
+ * Copyright (C) 2015 Michael Wallace, WallaceIT
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the GNU Lesser General Public License (LGPL)
+ * version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ */
+package webprint;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import qz.json.JSONObject;
+
+/**
+ * Per-origin request rate and request size limits. Each origin gets a token
+ * bucket that refills at limits.rate requests per second up to limits.burst,
+ * so a page stuck in a retry loop is turned away quickly instead of piling
+ * work onto the printers. Job count limits are applied by JobQueue.
+ *
+ * @author michael
+ */
+class AdmissionControl {
+
+    // buckets kept before idle ones are dropped
+    private static final int MAX_ORIGINS = 1024;
+
+    private final double rate;
+    private final double burst;
+    private final long maxPayload;
+    private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    public AdmissionControl(ServerConfig config) {
+        this.rate = Math.max(0.1, config.getInt("limits.rate", 20));
+        this.burst = Math.max(1, config.getInt("limits.burst", 40));
+        this.maxPayload = config.getLong("limits.payload", 64L * 1024 * 1024);
+    }
+
+    /**
+     * @return the largest request body accepted, in bytes
+     */
+    public long getMaxPayload() {
+        return maxPayload;
+    }
+
+    /**
+     * Checks a request body length before it is read
+     *
+     * @param contentLength the declared length, negative if unknown
+     * @throws Rejected if the length is unknown or over the limit
+     */
+    public void checkLength(long contentLength) throws Rejected {
+        if (contentLength < 0) {
+            throw new Rejected(411, 0, "Request body length is required.");
+        }
+        if (contentLength > maxPayload) {
+            throw new Rejected(413, 0, "Request is larger than the " + maxPayload + " byte limit.");
+        }
+    }
+
+    /**
+     * Takes a token from the origin's bucket
+     *
+     * @param origin
+     * @throws Rejected with status 429 if the origin is sending too many
+     * requests
+     */
+    public void checkRate(String origin) throws Rejected {
+        Bucket bucket = buckets.get(origin);
+        if (bucket == null) {
+            if (buckets.size() >= MAX_ORIGINS) {
+                evictIdle();
+            }
+            Bucket created = new Bucket();
+            bucket = buckets.putIfAbsent(origin, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+        long wait = bucket.take();
+        if (wait > 0) {
+            throw new Rejected(429, (int) Math.ceil(wait / 1000.0), "Too many requests from " + origin + ", try again shortly.");
+        }
+    }
+
+    /**
+     * Drops buckets that have refilled, they are the same as a new bucket
+     */
+    private void evictIdle() {
+        long now = System.nanoTime();
+        Iterator<Bucket> it = buckets.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().isFull(now)) {
+                it.remove();
+            }
+        }
+    }
+
+    private class Bucket {
+
+        private double tokens = burst;
+        private long updated = System.nanoTime();
+
+        /**
+         * @return 0 if a token was taken, otherwise ms until one is available
+         */
+        synchronized long take() {
+            refill(System.nanoTime());
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) * 1000 / rate);
+        }
+
+        synchronized boolean isFull(long now) {
+            refill(now);
+            return tokens >= burst;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(burst, tokens + (now - updated) / 1e9 * rate);
+            updated = now;
+        }
+    }
+
+    /**
+     * A request or job turned away by a limit
+     */
+    static class Rejected extends PrintJob.JobException {
+
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+        final int retryAfter;
+
+        /**
+         * @param status HTTP status, eg. 429 or 503
+         * @param retryAfter seconds before the client should try again, 0
+         * if retrying will not help
+         * @param message
+         */
+        Rejected(int status, int retryAfter, String message) {
+            super(message);
+            this.status = status;
+            this.retryAfter = retryAfter;
+        }
+
+        JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("error", getMessage());
+            if (retryAfter > 0) {
+                json.put("retryAfter", retryAfter);
+            }
+            return json;
+        }
+    }
+}
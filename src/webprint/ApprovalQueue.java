@@ -0,0 +1,188 @@
+/**
+ * This file is part of WebPrint
+ *
+ * @author Michael Wallace
+ *
+ * Copyright (C) 2015 Michael Wallace, WallaceIT
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the GNU Lesser General Public License (LGPL)
+ * version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ */
+package webprint;
+
+import java.awt.HeadlessException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.JFrame;
+import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+import qz.json.JSONObject;
+
+/**
+ * Asks the user whether unknown origins may use the server, without holding
+ * up the requests that asked. The first init request from an origin opens a
+ * dialog on the event dispatch thread and gets a ticket straight away; later
+ * requests from the same origin share that dialog. The client collects the
+ * result with its ticket, by polling or, over a websocket, when it is pushed.
+ *
+ * @author michael
+ */
+class ApprovalQueue {
+
+    // time (ms) a decision is kept for clients to collect
+    private static final long KEEP_DECIDED = 60000;
+
+    private final AccessControl acl;
+    private final JFrame frame;
+    private final ConcurrentHashMap<String, Approval> approvals = new ConcurrentHashMap<>();
+
+    public ApprovalQueue(AccessControl acl, JFrame frame) {
+        this.acl = acl;
+        this.frame = frame;
+    }
+
+    /**
+     * Returns the approval for an origin, asking the user if it has not been
+     * asked yet
+     *
+     * @param origin
+     * @return
+     */
+    public Approval request(String origin) {
+        removeExpired();
+        Approval approval = approvals.get(origin);
+        if (approval == null) {
+            Approval created = new Approval(origin);
+            approval = approvals.putIfAbsent(origin, created);
+            if (approval == null) {
+                approval = created;
+                ask(created);
+            }
+        }
+        return approval;
+    }
+
+    /**
+     * @param origin
+     * @param ticket the ticket given to the client
+     * @return the approval the ticket belongs to, or null if the ticket is
+     * unknown or expired
+     */
+    public Approval get(String origin, String ticket) {
+        Approval approval = approvals.get(origin);
+        return approval != null && approval.ticket.equals(ticket) ? approval : null;
+    }
+
+    private void removeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Approval> it = approvals.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().isExpired(now)) {
+                it.remove();
+            }
+        }
+    }
+
+    private void ask(final Approval approval) {
+        System.out.println("Authentication needed...");
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                int dialogResult;
+                try {
+                    dialogResult = JOptionPane.showConfirmDialog(frame, approval.origin + " is trying to access your printers and serial ports.\nWould you like to allow?\nOnly click yes for sites you trust.", "Warning", JOptionPane.YES_NO_OPTION);
+                    frame.requestFocus();
+                } catch (HeadlessException ex) {
+                    Logger.getLogger(ApprovalQueue.class.getName()).log(Level.WARNING, "Cannot ask to allow " + approval.origin, ex);
+                    dialogResult = JOptionPane.NO_OPTION;
+                }
+                approval.decide(dialogResult == JOptionPane.YES_OPTION ? acl.grant(approval.origin) : null);
+            }
+        });
+    }
+
+    /**
+     * The user's answer for one origin
+     */
+    static class Approval {
+
+        final String origin;
+        final String ticket = UUID.randomUUID().toString();
+        private boolean decided = false;
+        // the token for the origin if it was allowed
+        private String cookie;
+        private long decidedAt;
+        private List<Runnable> listeners = new ArrayList<>();
+
+        Approval(String origin) {
+            this.origin = origin;
+        }
+
+        private void decide(String cookie) {
+            List<Runnable> notify;
+            synchronized (this) {
+                this.decided = true;
+                this.cookie = cookie;
+                this.decidedAt = System.currentTimeMillis();
+                notify = listeners;
+                listeners = null;
+            }
+            for (Runnable listener : notify) {
+                listener.run();
+            }
+        }
+
+        synchronized boolean isExpired(long now) {
+            return decided && now - decidedAt > KEEP_DECIDED;
+        }
+
+        /**
+         * Runs the listener once the user has answered, straight away if they
+         * already have
+         *
+         * @param listener
+         */
+        void whenDecided(Runnable listener) {
+            synchronized (this) {
+                if (!decided) {
+                    listeners.add(listener);
+                    return;
+                }
+            }
+            listener.run();
+        }
+
+        /**
+         * @return the init response: pending with the ticket, ready with the
+         * token, or an error if access was denied
+         */
+        synchronized JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            if (!decided) {
+                json.put("pending", true);
+                json.put("ticket", ticket);
+            } else if (cookie != null) {
+                json.put("cookie", cookie);
+                json.put("ready", true);
+                // tells webprint.js it can send raw data to /raw as binary
+                json.put("raw", true);
+            } else {
+                json.put("error", "Printer access has been denied for this site.");
+            }
+            return json;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * This file is part of WebPrint
+ *
+ * @author Michael Wallace
+ *
+ * Copyright (C) 2015 Michael Wallace, WallaceIT
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the GNU Lesser General Public License (LGPL)
+ * version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ */
+package webprint;
+
+import java.util.concurrent.ConcurrentHashMap;
+import qz.Base64;
+import qz.PrintManager;
+import qz.SerialIO;
+import qz.json.JSONObject;
+
+/**
+ * The only state shared between print jobs: a lock per printer so jobs for
+ * the same printer never interleave, and the open serial ports. Each serial
+ * port has its own PrintManager which is only used while holding that port.
+ * Responses read from a port are published as "serial" events to the origin
+ * that last used it.
+ *
+ * @author michael
+ */
+class DeviceRegistry {
+
+    private final ConcurrentHashMap<String, Object> printerLocks = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, PrintManager> ports = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> portOrigins = new ConcurrentHashMap<>();
+    private final EventHub events;
+
+    public DeviceRegistry(EventHub events) {
+        this.events = events;
+    }
+
+    /**
+     * Returns the lock guarding the named printer, jobs for different
+     * printers use different locks and can run in parallel.
+     *
+     * @param printer the name of the print service, or the URI of an IPP
+     * printer, never the name a client gave
+     * @return
+     */
+    public Object getPrinterLock(String printer) {
+        Object lock = printerLocks.get(printer);
+        if (lock == null) {
+            Object created = new Object();
+            lock = printerLocks.putIfAbsent(printer, created);
+            if (lock == null) {
+                lock = created;
+            }
+        }
+        return lock;
+    }
+
+    public String[] findPorts() {
+        return new SerialIO().getSerialPortArray();
+    }
+
+    /**
+     * @param portName
+     * @return true if the port has been opened and is still open
+     */
+    public boolean isPortOpen(String portName) {
+        PrintManager port = ports.get(portName);
+        if (port == null) {
+            return false;
+        }
+        // read without the port lock, so a long write does not hold up the caller
+        SerialIO serial = port.getSerialIO();
+        return serial.isOpen() && portName.equals(serial.getPortName());
+    }
+
+    private PrintManager getPort(String portName) {
+        PrintManager port = ports.get(portName);
+        if (port == null) {
+            PrintManager created = new PrintManager();
+            port = ports.putIfAbsent(portName, created);
+            if (port == null) {
+                port = created;
+                port.getSerialIO().setOutputListener(new SerialIO.OutputListener() {
+                    @Override
+                    public void serialOutput(String name, byte[] output) {
+                        JSONObject data = new JSONObject();
+                        data.put("port", name);
+                        data.put("data", Base64.encodeBytes(output));
+                        events.publish(portOrigins.get(name), "serial", data);
+                    }
+                });
+            }
+        }
+        return port;
+    }
+
+    /**
+     * Opens (or reopens) a serial port with the given settings
+     *
+     * @param portName
+     * @param settings
+     * @param origin the origin that responses from the port are sent to
+     * @throws PrintJob.JobException
+     */
+    public void openPort(String portName, JSONObject settings, String origin) throws PrintJob.JobException {
+        PrintManager port = getPort(portName);
+        synchronized (port) {
+            portOrigins.put(portName, origin);
+            if (!port.openPortWithProperties(portName, settings)) {
+                throw new PrintJob.JobException("Could not open serial port: " + port.getException());
+            }
+        }
+    }
+
+    /**
+     * Writes data to a serial port, opening it with the last used settings if
+     * needed
+     *
+     * @param portName
+     * @param data
+     * @param origin the origin that responses from the port are sent to
+     * @throws PrintJob.JobException
+     */
+    public void send(String portName, byte[] data, String origin) throws PrintJob.JobException {
+        PrintManager port = getPort(portName);
+        synchronized (port) {
+            portOrigins.put(portName, origin);
+            if (!port.send(portName, data)) {
+                throw new PrintJob.JobException("Failed to print: " + port.getException());
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * This file is part of WebPrint
+ *
+ * @author Michael Wallace
+ *
+ * Copyright (C) 2015 Michael Wallace, WallaceIT
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the GNU Lesser General Public License (LGPL)
+ * version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ */
+package webprint;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import qz.json.JSONObject;
+
+/**
+ * Delivers job and device events to connected clients. Events are published
+ * on the thread that caused them (a job or serial port thread), so
+ * subscribers must not block for long.
+ *
+ * Each event belongs to the origin that caused it, or to every origin when
+ * the origin is null. Subscribers decide which origins they forward.
+ *
+ * @author michael
+ */
+class EventHub {
+
+    interface Subscriber {
+
+        /**
+         * @param origin the origin the event belongs to, null for all origins
+         * @param type eg. "job" or "serial"
+         * @param data the event fields, shared between subscribers so must
+         * not be modified
+         */
+        void onEvent(String origin, String type, JSONObject data);
+    }
+
+    private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    public void subscribe(Subscriber subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    public void unsubscribe(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * Closes the subscribers that hold a connection open, eg. websockets and
+     * event streams
+     */
+    public void closeAll() {
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber instanceof Closeable) {
+                try {
+                    ((Closeable) subscriber).close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    public void publish(String origin, String type, JSONObject data) {
+        for (Subscriber subscriber : subscribers) {
+            try {
+                subscriber.onEvent(origin, type, data);
+            } catch (RuntimeException ex) {
+                Logger.getLogger(EventHub.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * This file is part of WebPrint
+ *
+ * @author Michael Wallace
+ *
+ * Copyright (C) 2015 Michael Wallace, WallaceIT
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the GNU Lesser General Public License (LGPL)
+ * version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ */
+package webprint;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.entity.AbstractHttpEntity;
+import qz.json.JSONObject;
+
+/**
+ * A server-sent events response body for one authenticated origin. Events
+ * are queued by the publishing thread and written by a stream thread, which
+ * the connection is handed to once the response headers are sent, so a slow
+ * client never holds up a print job or a worker. If the client falls too far
+ * behind the stream is ended and the browser reconnects.
+ *
+ * The origin's token is checked again before anything is written, so the
+ * stream ends once the origin is removed from the ACL.
+ *
+ * @author michael
+ */
+class EventStream extends AbstractHttpEntity implements EventHub.Subscriber, Closeable {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String CLOSE = "";
+
+    private final EventHub events;
+    private final AccessControl acl;
+    private final String origin;
+    private final String cookie;
+    private final long heartbeat;
+    private final BlockingQueue<String> queue;
+    private volatile boolean closed = false;
+
+    /**
+     * @param events
+     * @param acl
+     * @param origin an authenticated origin
+     * @param cookie the token it authenticated with
+     * @param config
+     */
+    public EventStream(EventHub events, AccessControl acl, String origin, String cookie, ServerConfig config) {
+        this.events = events;
+        this.acl = acl;
+        this.origin = origin;
+        this.cookie = cookie;
+        this.heartbeat = Math.max(1000, config.getLong("sse.heartbeat", 15000));
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, config.getInt("sse.queue", 256)));
+        setContentType("text/event-stream; charset=utf-8");
+        setChunked(true);
+    }
+
+    @Override
+    public void onEvent(String eventOrigin, String type, JSONObject data) {
+        if (eventOrigin != null && !eventOrigin.equals(origin)) {
+            return;
+        }
+        if (!queue.offer("event: " + type + "\ndata: " + data.toString() + "\n\n")) {
+            System.err.println("Event stream for " + origin + " is not keeping up, closing it");
+            close();
+        }
+    }
+
+    /**
+     * Ends the stream, the stream thread finishes writing and releases the
+     * connection
+     */
+    @Override
+    public void close() {
+        closed = true;
+        queue.clear();
+        queue.offer(CLOSE);
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        events.subscribe(this);
+        try {
+            out.write("retry: 2000\n\n".getBytes(UTF8));
+            out.flush();
+            while (!closed) {
+                String event;
+                try {
+                    event = queue.poll(heartbeat, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+                if (event == null) {
+                    // comment line, keeps proxies open and detects closed clients
+                    event = ":\n\n";
+                } else if (event == CLOSE) {
+                    break;
+                }
+                if (!acl.isAllowed(origin, cookie)) {
+                    System.out.println("Event stream for " + origin + " ended, the origin is no longer allowed");
+                    break;
+                }
+                out.write(event.getBytes(UTF8));
+                out.flush();
+            }
+        } finally {
+            events.unsubscribe(this);
+        }
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return false;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    /**
+     * Events are only written as they happen, a caller that buffers the
+     * body gets the same error as for a non-repeatable entity already read
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        throw new IOException("Event streams can only be written");
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return true;
+    }
+}
@@ -0,0 +1,361 @@
+/**
+ * This file is part of WebPrint
+ *
+ * @author Michael Wallace
+ *
+ * Copyright (C) 2015 Michael Wallace, WallaceIT
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the GNU Lesser General Public License (LGPL)
+ * version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ */
+package webprint;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.print.PrintException;
+import javax.print.PrintService;
+import javax.print.attribute.standard.PrinterIsAcceptingJobs;
+import javax.print.attribute.standard.PrinterState;
+import javax.print.attribute.standard.PrinterStateReason;
+import javax.print.attribute.standard.PrinterStateReasons;
+import qz.PrintIPP;
+import qz.PrintServiceMatcher;
+import qz.json.JSONObject;
+
+/**
+ * Checks printers, socket printers and serial ports in the background
+ * (health.interval) and keeps the last result, so jobs for a target that is
+ * known to be offline can be turned away without waiting on it. Printers are
+ * asked for their state through the print service, or IPP for printers in
+ * ipp.printers, socket printers are connected to and serial ports are looked
+ * for. Sockets and ports are checked once a job has been sent to them.
+ * A socket printer is not connected to while it has jobs, as the extra
+ * connection could hold up or break into a job. Printer status changes are
+ * published as "status" events.
+ *
+ * @author michael
+ */
+class HealthProber {
+
+    // socket and serial targets followed at most
+    private static final int MAX_TARGETS = 256;
+    // a target found offline is checked again when a job arrives, at most this often (ms)
+    private static final long RECHECK_INTERVAL = 1000;
+
+    enum State {
+        ONLINE, OFFLINE, UNKNOWN;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    /**
+     * The result of one check
+     */
+    static final class Status {
+
+        final State state;
+        // why the target is offline, or details such as whether a port is open
+        final String reason;
+        final long checked = System.currentTimeMillis();
+
+        Status(State state, String reason) {
+            this.state = state;
+            this.reason = reason;
+        }
+
+        @Override
+        public String toString() {
+            return reason == null ? state.toString() : state + " (" + reason + ")";
+        }
+    }
+
+    private final DeviceRegistry devices;
+    private final EventHub events;
+    private final Map<String, PrintIPP> ippPrinters;
+    private final JobQueue jobs;
+    private final long interval;
+    private final int connectTimeout;
+    private final ConcurrentHashMap<String, Status> statuses = new ConcurrentHashMap<>();
+    // printer names as they are shown, by key
+    private final ConcurrentHashMap<String, String> names = new ConcurrentHashMap<>();
+    // socket and serial targets jobs were sent to, printers come from the printer list
+    private final ConcurrentHashMap<String, Boolean> tracked = new ConcurrentHashMap<>();
+    // targets waiting to be checked out of turn
+    private final ConcurrentHashMap<String, Boolean> rechecks = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param devices
+     * @param events
+     * @param ippPrinters lower case printer names sent through IPP
+     * @param jobs the queue whose targets are checked
+     * @param config
+     */
+    public HealthProber(DeviceRegistry devices, EventHub events, Map<String, PrintIPP> ippPrinters, JobQueue jobs, ServerConfig config) {
+        this.devices = devices;
+        this.events = events;
+        this.ippPrinters = ippPrinters;
+        this.jobs = jobs;
+        this.interval = config.getLong("health.interval", 15000);
+        this.connectTimeout = config.getInt("health.timeout", 2000);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "webprint-health");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        if (interval > 0) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    probeAll();
+                }
+            }, 0, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return seconds between checks, for telling clients when to retry
+     */
+    public int getRetrySeconds() {
+        return (int) Math.max(1, interval / 1000);
+    }
+
+    /**
+     * Returns the last known status of a job's target. A socket or serial
+     * target seen for the first time is checked soon, and an offline target
+     * is checked again so it is noticed as soon as it is back.
+     *
+     * @param job
+     * @return the status, or null if the target has not been checked
+     */
+    public Status check(PrintJob job) {
+        if (interval <= 0) {
+            return null;
+        }
+        String key = key(job);
+        if (key == null) {
+            return null;
+        }
+        if (!key.startsWith("printer:") && !tracked.containsKey(key) && tracked.size() < MAX_TARGETS) {
+            tracked.put(key, Boolean.TRUE);
+            recheck(key);
+        }
+        Status status = statuses.get(key);
+        if (status != null && status.state == State.OFFLINE && System.currentTimeMillis() - status.checked > RECHECK_INTERVAL) {
+            recheck(key);
+        }
+        return status;
+    }
+
+    /**
+     * @param printers printer names
+     * @return the status of each printer, "unknown" for printers not
+     * checked yet
+     */
+    public JSONObject getPrinterStatus(String[] printers) {
+        JSONObject json = new JSONObject();
+        for (String name : printers) {
+            Status status = statuses.get(printerKey(name));
+            json.put(name, status != null ? status.state.toString() : State.UNKNOWN.toString());
+        }
+        return json;
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private String key(PrintJob job) {
+        switch (job.getType()) {
+            case SOCKET:
+                return "socket:" + job.getTarget();
+            case SERIAL:
+                return "serial:" + job.getTarget();
+            default:
+                if (job.getType() == PrintJob.Type.RAW && ippPrinters.containsKey(job.getTarget().toLowerCase(Locale.ROOT))) {
+                    return printerKey(job.getTarget());
+                }
+                PrintService service = PrintServiceMatcher.findPrinter(job.getTarget());
+                return service == null ? null : printerKey(service.getName());
+        }
+    }
+
+    private String printerKey(String name) {
+        String key = "printer:" + name.toLowerCase(Locale.ROOT);
+        names.put(key, name);
+        return key;
+    }
+
+    private void recheck(final String key) {
+        if (rechecks.putIfAbsent(key, Boolean.TRUE) != null) {
+            return;
+        }
+        try {
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    rechecks.remove(key);
+                    Status status = probe(key);
+                    if (status != null) {
+                        update(key, status);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            rechecks.remove(key);
+        }
+    }
+
+    private void probeAll() {
+        try {
+            Set<String> seen = new HashSet<>();
+            for (PrintService service : PrintServiceMatcher.getPrinterList()) {
+                String key = printerKey(service.getName());
+                if (seen.add(key) && !ippPrinters.containsKey(service.getName().toLowerCase(Locale.ROOT))) {
+                    update(key, probePrinter(service));
+                }
+            }
+            for (Map.Entry<String, PrintIPP> printer : ippPrinters.entrySet()) {
+                String key = printerKey(printer.getKey());
+                seen.add(key);
+                update(key, probeIpp(printer.getValue()));
+            }
+            for (String key : tracked.keySet()) {
+                seen.add(key);
+                Status status = probe(key);
+                if (status != null) {
+                    update(key, status);
+                }
+            }
+            statuses.keySet().retainAll(seen);
+            names.keySet().retainAll(seen);
+        } catch (RuntimeException ex) {
+            // keep the schedule running
+            Logger.getLogger(HealthProber.class.getName()).log(Level.WARNING, "Health check failed", ex);
+        }
+    }
+
+    /**
+     * Checks one target
+     *
+     * @return the status, or null if the printer is no longer listed or the
+     * target is busy with a job
+     */
+    private Status probe(String key) {
+        int colon = key.indexOf(':');
+        String kind = key.substring(0, colon);
+        String target = key.substring(colon + 1);
+        switch (kind) {
+            case "socket":
+                // skipped while a job is using the printer, the last status is kept
+                return jobs.isBusy(PrintJob.Type.SOCKET, target) ? null : probeSocket(target);
+            case "serial":
+                return probeSerial(target);
+            default:
+                PrintIPP ipp = ippPrinters.get(target);
+                if (ipp != null) {
+                    return probeIpp(ipp);
+                }
+                for (PrintService service : PrintServiceMatcher.getPrinterList()) {
+                    if (printerKey(service.getName()).equals(key)) {
+                        return probePrinter(service);
+                    }
+                }
+                return null;
+        }
+    }
+
+    private Status probePrinter(PrintService service) {
+        try {
+            PrinterIsAcceptingJobs accepting = service.getAttribute(PrinterIsAcceptingJobs.class);
+            PrinterState state = service.getAttribute(PrinterState.class);
+            PrinterStateReasons reasons = service.getAttribute(PrinterStateReasons.class);
+            if (accepting == PrinterIsAcceptingJobs.NOT_ACCEPTING_JOBS) {
+                return new Status(State.OFFLINE, "not accepting jobs");
+            } else if (state == PrinterState.STOPPED) {
+                return new Status(State.OFFLINE, "stopped");
+            } else if (reasons != null && (reasons.containsKey(PrinterStateReason.SHUTDOWN) || reasons.containsKey(PrinterStateReason.TIMED_OUT))) {
+                return new Status(State.OFFLINE, "offline");
+            } else if (accepting == null && state == null) {
+                // the print service does not report its state
+                return new Status(State.UNKNOWN, null);
+            }
+            return new Status(State.ONLINE, null);
+        } catch (RuntimeException ex) {
+            return new Status(State.UNKNOWN, ex.getMessage());
+        }
+    }
+
+    private Status probeIpp(PrintIPP printer) {
+        try {
+            String reason = printer.getUnavailableReason();
+            return reason == null ? new Status(State.ONLINE, null) : new Status(State.OFFLINE, reason);
+        } catch (PrintException | IOException ex) {
+            return new Status(State.OFFLINE, ex.getMessage());
+        }
+    }
+
+    private Status probeSocket(String target) {
+        String[] parts = target.split(":");
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(parts[0], parts.length < 2 ? 9100 : Integer.parseInt(parts[1])), connectTimeout);
+            return new Status(State.ONLINE, null);
+        } catch (IOException ex) {
+            return new Status(State.OFFLINE, ex.getMessage());
+        } catch (IllegalArgumentException ex) {
+            return new Status(State.UNKNOWN, "invalid address");
+        }
+    }
+
+    private Status probeSerial(String port) {
+        if (!Arrays.asList(devices.findPorts()).contains(port)) {
+            return new Status(State.OFFLINE, "not connected");
+        }
+        return new Status(State.ONLINE, devices.isPortOpen(port) ? "open" : "closed");
+    }
+
+    private void update(String key, Status status) {
+        Status previous = statuses.put(key, status);
+        if (previous != null ? previous.state == status.state : status.state == State.ONLINE) {
+            return;
+        }
+        Logger.getLogger(HealthProber.class.getName()).log(Level.INFO, "{0} is {1}", new Object[]{key, status});
+        if (key.startsWith("printer:")) {
+            JSONObject data = new JSONObject();
+            data.put("printer", names.get(key));
+            data.put("status", status.state.toString());
+            if (status.reason != null) {
+                data.put("reason", status.reason);
+            }
+            events.publish(null, "status", data);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * This file is part of WebPrint
+ *
+ * @author Michael Wallace
+ *
+ * Copyright (C) 2015 Michael Wallace, WallaceIT
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the GNU Lesser General Public License (LGPL)
+ * version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ */
+package webprint;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import qz.json.JSONArray;
+import qz.json.JSONObject;
+
+/**
+ * Remembers the jobs queued for recent print requests by their idempotency
+ * key, so a resent request gets the original jobs instead of printing again.
+ * Keys expire after idempotency.ttl ms and at most idempotency.max are kept,
+ * oldest first out.
+ *
+ * @author michael
+ */
+class IdempotencyCache {
+
+    private final long ttl;
+    private final int max;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+
+    public IdempotencyCache(ServerConfig config) {
+        this.ttl = Math.max(1000, config.getLong("idempotency.ttl", 10 * 60 * 1000));
+        this.max = Math.max(1, config.getInt("idempotency.max", 1000));
+    }
+
+    /**
+     * Claims a key for a new request
+     *
+     * @param key the origin and idempotency key
+     * @return null if the key is new, the caller must then call complete()
+     * or release(), otherwise the entry of the earlier request
+     */
+    public synchronized Entry claim(String key) {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entries.size() <= max && now - entry.created < ttl) {
+                break;
+            }
+            it.remove();
+        }
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entries.put(key, new Entry(now));
+        }
+        return entry;
+    }
+
+    /**
+     * Stores the response for a claimed key and wakes any requests waiting
+     * for it. Requests turned away by the server limits without queuing any
+     * job are not remembered, so they can be retried. A batch that queued
+     * some of its jobs is remembered, a retry gets the original jobs and
+     * only the jobs that were turned away need sending again.
+     *
+     * @param key
+     * @param response the queued jobs, as returned to an async request
+     */
+    public void complete(String key, JSONObject response) {
+        Entry entry;
+        synchronized (this) {
+            entry = isRetryable(response) ? entries.remove(key) : entries.get(key);
+        }
+        if (entry != null) {
+            entry.complete(response.toString());
+        }
+    }
+
+    /**
+     * Forgets a claimed key that could not be completed, so the request can
+     * be retried. Requests waiting for it are told to try again.
+     *
+     * @param key
+     */
+    public void release(String key) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.remove(key);
+        }
+        if (entry != null) {
+            JSONObject response = new JSONObject();
+            response.put("error", "The original print request failed, try again.");
+            entry.complete(response.toString());
+        }
+    }
+
+    /**
+     * @return true if the request or a job in a batch was turned away by the
+     * server limits and no job was queued
+     */
+    private static boolean isRetryable(JSONObject response) {
+        if (response.has("retryAfter")) {
+            return true;
+        }
+        JSONArray results = response.optJSONArray("results");
+        boolean rejected = false;
+        for (int i = 0; results != null && i < results.length(); i++) {
+            JSONObject result = results.getJSONObject(i);
+            if (result.has("job")) {
+                return false;
+            }
+            rejected |= result.has("retryAfter");
+        }
+        return rejected;
+    }
+
+    static class Entry {
+
+        final long created;
+        private String response;
+
+        Entry(long created) {
+            this.created = created;
+        }
+
+        synchronized void complete(String response) {
+            this.response = response;
+            notifyAll();
+        }
+
+        /**
+         * Waits for the original request to queue its jobs
+         *
+         * @param timeout ms
+         * @return a copy of the original response, or null on timeout
+         * @throws InterruptedException
+         */
+        synchronized JSONObject await(long timeout) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout;
+            long remaining;
+            while (response == null && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                wait(remaining);
+            }
+            return response == null ? null : new JSONObject(response);
+        }
+    }
+}
@@ -0,0 +1,545 @@
+/**
+ * This file is part of WebPrint
+ *
+ * @author Michael Wallace
+ *
+ * Copyright (C) 2015 Michael Wallace, WallaceIT
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the GNU Lesser General Public License (LGPL)
+ * version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ */
+package webprint;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.print.PrintService;
+import javax.print.event.PrintJobAdapter;
+import javax.print.event.PrintJobEvent;
+import qz.PrintIPP;
+import qz.PrintRaw;
+import qz.PrintServiceMatcher;
+import qz.json.JSONObject;
+
+/**
+ * Runs print jobs in the background. Jobs for the same target (printer,
+ * serial port or socket) run one at a time in submission order, jobs for
+ * different targets run in parallel. Printers are looked up first, so every
+ * name that matches a printer gets the same queue. Finished jobs are remembered for a while
+ * so clients can poll their status, and every state change is published as a
+ * "job" event.
+ *
+ * The number of unfinished jobs is limited overall (jobs.max) and per target
+ * (jobs.queue), jobs over either limit are rejected rather than queued.
+ *
+ * Raw jobs for the printers listed in ipp.printers are sent with PrintIPP
+ * instead of javax.print, and their job state is followed on the printer.
+ *
+ * Jobs for a target the HealthProber last found offline are rejected
+ * straight away (health.failfast) rather than left to time out.
+ *
+ * @author michael
+ */
+class JobQueue {
+
+    // seconds a client should wait after a job is rejected for a full queue
+    private static final int BUSY_RETRY = 5;
+
+    enum State {
+        QUEUED, SPOOLING, SENT, COMPLETED, FAILED;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    private final DeviceRegistry devices;
+    private final EventHub events;
+    private final Metrics metrics;
+    private final ExecutorService executor;
+    private final AtomicInteger pending = new AtomicInteger(0);
+    private final ConcurrentHashMap<String, Job> jobs = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, TargetQueue> targets = new ConcurrentHashMap<>();
+    private final LinkedList<String> finished = new LinkedList<>();
+    private final int history;
+    private final int maxJobs;
+    private final int maxQueue;
+    private final Object idle = new Object();
+    private volatile boolean draining = false;
+    // lower case printer name to its IPP backend
+    private final HashMap<String, PrintIPP> ippPrinters = new HashMap<>();
+    private final long printTimeout;
+    private final long ippTimeout;
+    private final HealthProber health;
+    private final boolean failFast;
+
+    public JobQueue(DeviceRegistry devices, EventHub events, Metrics metrics, ServerConfig config) {
+        this.devices = devices;
+        this.events = events;
+        this.metrics = metrics;
+        this.history = Math.max(1, config.getInt("jobs.history", 500));
+        this.maxJobs = Math.max(1, config.getInt("jobs.max", 256));
+        this.maxQueue = Math.max(1, config.getInt("jobs.queue", 32));
+        int threads = Math.max(1, config.getInt("jobs.threads", 4));
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "webprint-job-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+        this.executor = pool;
+        this.printTimeout = config.getLong("jobs.timeout", 30000);
+        this.ippTimeout = config.getLong("ipp.timeout", 120000);
+        loadIppPrinters(config.getString("ipp.printers", ""));
+        this.health = new HealthProber(devices, events, ippPrinters, this, config);
+        this.failFast = config.getBoolean("health.failfast", true);
+    }
+
+    /**
+     * Reads printers to send through IPP, a comma separated list of
+     * name=uri, or just the name of a local CUPS queue
+     */
+    private void loadIppPrinters(String printers) {
+        for (String entry : printers.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int equals = entry.indexOf('=');
+            String name = equals < 0 ? entry : entry.substring(0, equals).trim();
+            try {
+                String uri = equals < 0 ? new URI("ipp", null, "localhost", 631, "/printers/" + name, null, null).toString()
+                        : entry.substring(equals + 1).trim();
+                ippPrinters.put(name.toLowerCase(Locale.ROOT), new PrintIPP(uri));
+            } catch (URISyntaxException ex) {
+                Logger.getLogger(JobQueue.class.getName()).log(Level.WARNING, "Invalid IPP printer " + entry, ex);
+            }
+        }
+    }
+
+    /**
+     * @param printJob
+     * @return the IPP backend for a raw job, or null if it prints through
+     * javax.print
+     */
+    PrintIPP getIppPrinter(PrintJob printJob) {
+        return printJob.getType() == PrintJob.Type.RAW ? ippPrinters.get(printJob.getTarget().toLowerCase(Locale.ROOT)) : null;
+    }
+
+    /**
+     * Queues a job behind any other jobs for the same target
+     *
+     * @param printJob
+     * @return the queued job, which can be waited on
+     * @throws AdmissionControl.Rejected if too many jobs are waiting overall
+     * or for the job's target
+     */
+    public Job submit(PrintJob printJob) throws AdmissionControl.Rejected {
+        if (draining) {
+            throw new AdmissionControl.Rejected(503, BUSY_RETRY, "WebPrint is shutting down, try again later.");
+        }
+        printJob = resolve(printJob);
+        HealthProber.Status status = health.check(printJob);
+        if (failFast && status != null && status.state == HealthProber.State.OFFLINE) {
+            throw new AdmissionControl.Rejected(503, health.getRetrySeconds(), printJob.getTarget() + " is " + status + ", try again later.");
+        }
+        // reserve a place first, so concurrent submits cannot overshoot the limits
+        if (pending.incrementAndGet() > maxJobs) {
+            pending.decrementAndGet();
+            throw new AdmissionControl.Rejected(503, BUSY_RETRY, "Too many print jobs are waiting, try again later.");
+        }
+        TargetQueue target = reserve(queueKey(printJob));
+        if (target == null) {
+            pending.decrementAndGet();
+            throw new AdmissionControl.Rejected(503, BUSY_RETRY, "Too many print jobs are waiting for " + printJob.getTarget() + ", try again later.");
+        }
+        Job job = new Job(UUID.randomUUID().toString(), printJob);
+        jobs.put(job.id, job);
+        metrics.jobQueued(printJob);
+        events.publish(printJob.getOrigin(), "job", job.toJSON());
+        target.add(job);
+        return job;
+    }
+
+    /**
+     * Looks up the printer of a printer job, so jobs that name the same
+     * printer differently, eg. "zebra" and "ZDesigner GK420d", share its
+     * queue and lock. A printer that is not found is left for the job to
+     * report.
+     */
+    private PrintJob resolve(PrintJob printJob) {
+        if (!printJob.isPrinterJob() || printJob.getPrintService() != null || getIppPrinter(printJob) != null) {
+            return printJob;
+        }
+        PrintService service = PrintServiceMatcher.findPrinter(printJob.getTarget());
+        return service == null ? printJob : printJob.withPrintService(service);
+    }
+
+    /**
+     * @return the key of the queue for the device a job prints to
+     */
+    private String queueKey(PrintJob printJob) {
+        PrintIPP ipp = getIppPrinter(printJob);
+        return printJob.getType() + ":" + (ipp != null ? ipp.getPrinterUri() : printJob.getDevice());
+    }
+
+    /**
+     * Reserves a place in the queue for a target, creating the queue if the
+     * target has none. Queues are removed once they have no jobs left.
+     *
+     * @param key
+     * @return the queue, or null if it is full
+     */
+    private TargetQueue reserve(String key) {
+        while (true) {
+            TargetQueue target = targets.get(key);
+            if (target == null) {
+                TargetQueue created = new TargetQueue(key);
+                target = targets.putIfAbsent(key, created);
+                if (target == null) {
+                    target = created;
+                }
+            }
+            int size = target.size.get();
+            if (size < 0) {
+                // removed while idle, a new queue takes its place
+                targets.remove(key, target);
+            } else if (size >= maxQueue) {
+                return null;
+            } else if (target.size.compareAndSet(size, size + 1)) {
+                return target;
+            }
+        }
+    }
+
+    /**
+     * Returns a queued, running or recently finished job
+     *
+     * @param id
+     * @return the job or null if unknown
+     */
+    public Job get(String id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * @return the number of jobs queued or printing
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Stops accepting jobs and waits for the queued and running ones to
+     * finish
+     *
+     * @param deadline time (ms) to give up waiting
+     * @return true if every job finished
+     * @throws InterruptedException
+     */
+    public boolean drain(long deadline) throws InterruptedException {
+        draining = true;
+        synchronized (idle) {
+            long remaining;
+            while (pending.get() > 0 && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                idle.wait(remaining);
+            }
+        }
+        return pending.get() == 0;
+    }
+
+    private void retire(Job job) {
+        if (pending.decrementAndGet() == 0) {
+            synchronized (idle) {
+                idle.notifyAll();
+            }
+        }
+        synchronized (finished) {
+            finished.add(job.id);
+            while (finished.size() > history) {
+                jobs.remove(finished.removeFirst());
+            }
+        }
+    }
+
+    public HealthProber getHealth() {
+        return health;
+    }
+
+    /**
+     * @param type
+     * @param target
+     * @return true if a job for the target is queued or printing
+     */
+    public boolean isBusy(PrintJob.Type type, String target) {
+        // a target's queue only exists while it has jobs
+        return targets.containsKey(type + ":" + target);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        health.shutdown();
+    }
+
+    /**
+     * Runs the jobs for one target in order, using at most one pool thread
+     */
+    class TargetQueue implements Runnable {
+
+        private final String key;
+        private final ConcurrentLinkedQueue<Job> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        // jobs queued or running, reserved by submit, -1 once the queue is removed
+        final AtomicInteger size = new AtomicInteger(0);
+
+        TargetQueue(String key) {
+            this.key = key;
+        }
+
+        void add(Job job) {
+            pending.add(job);
+            schedule();
+        }
+
+        private void schedule() {
+            if (!pending.isEmpty() && scheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                Job job;
+                while ((job = pending.poll()) != null) {
+                    try {
+                        job.run();
+                    } finally {
+                        // an idle queue is removed, so targets that are not used again are not kept
+                        if (size.decrementAndGet() == 0 && size.compareAndSet(0, -1)) {
+                            targets.remove(key, this);
+                            metrics.removeIdleTargets();
+                        }
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+                // a job may have been added after the last poll
+                schedule();
+            }
+        }
+    }
+
+    /**
+     * A submitted job and its current state
+     */
+    class Job {
+
+        final String id;
+        final PrintJob printJob;
+        // queue, lookup, spool and complete phases
+        final ServerTiming timing = new ServerTiming();
+        private volatile boolean transferred = false;
+        private State state = State.QUEUED;
+        private String error;
+        // set once the job has ended, a job can end as sent if the printer does not report that it finished
+        private boolean finished = false;
+
+        Job(String id, PrintJob printJob) {
+            this.id = id;
+            this.printJob = printJob;
+        }
+
+        private void run() {
+            timing.mark("queue");
+            setState(State.SPOOLING, null);
+            long start = System.nanoTime();
+            try {
+                PrintRaw.JobState result;
+                try {
+                    PrintIPP ipp = getIppPrinter(printJob);
+                    if (ipp != null) {
+                        result = printJob.executeIpp(devices, ipp, new Spool(), ippTimeout);
+                    } else {
+                        result = printJob.execute(devices, new Spool(), printTimeout, timing);
+                    }
+                } finally {
+                    timing.mark(transferred ? "complete" : "spool");
+                }
+                metrics.jobFinished(printJob, System.nanoTime() - start, false);
+                finish(result == PrintRaw.JobState.COMPLETED ? State.COMPLETED : State.SENT, null);
+            } catch (PrintJob.JobException ex) {
+                metrics.jobFinished(printJob, System.nanoTime() - start, true);
+                finish(State.FAILED, ex.getMessage());
+            } catch (RuntimeException ex) {
+                metrics.jobFinished(printJob, System.nanoTime() - start, true);
+                finish(State.FAILED, "Failed to print: " + ex.getMessage());
+            }
+        }
+
+        /**
+         * Publishes print service and IPP events for the job
+         */
+        private class Spool extends PrintJobAdapter implements PrintIPP.JobListener {
+
+            @Override
+            public void printDataTransferCompleted(PrintJobEvent pje) {
+                dataTransferred(0);
+            }
+
+            @Override
+            public void dataTransferred(int jobId) {
+                // the rest of the job is the printer working through the data
+                transferred = true;
+                timing.mark("spool");
+                setState(State.SENT, null);
+            }
+
+            @Override
+            public void jobStateChanged(int jobId, String state, String reasons) {
+                spoolEvent(state);
+            }
+
+            @Override
+            public void printJobCompleted(PrintJobEvent pje) {
+                spoolEvent("completed");
+            }
+
+            @Override
+            public void printJobFailed(PrintJobEvent pje) {
+                spoolEvent("failed");
+            }
+
+            @Override
+            public void printJobCanceled(PrintJobEvent pje) {
+                spoolEvent("canceled");
+            }
+
+            @Override
+            public void printJobNoMoreEvents(PrintJobEvent pje) {
+                spoolEvent("no-more-events");
+            }
+
+            @Override
+            public void printJobRequiresAttention(PrintJobEvent pje) {
+                spoolEvent("requires-attention");
+            }
+        }
+
+        /**
+         * Publishes a print service event for the job without changing its
+         * state
+         */
+        private void spoolEvent(String spool) {
+            JSONObject json = toJSON();
+            json.put("spool", spool);
+            events.publish(printJob.getOrigin(), "job", json);
+        }
+
+        private void setState(State state, String error) {
+            synchronized (this) {
+                if (finished) {
+                    // a print service event that came in after the job ended
+                    return;
+                }
+                this.state = state;
+                this.error = error;
+            }
+            events.publish(printJob.getOrigin(), "job", toJSON());
+        }
+
+        /**
+         * Sets the state the job ended in and wakes anything waiting for it
+         */
+        private void finish(State state, String error) {
+            synchronized (this) {
+                this.state = state;
+                this.error = error;
+                this.finished = true;
+                notifyAll();
+            }
+            retire(this);
+            events.publish(printJob.getOrigin(), "job", toJSON());
+        }
+
+        public synchronized State getState() {
+            return state;
+        }
+
+        /**
+         * @return true once the job has completed or failed, or ended as sent
+         */
+        public synchronized boolean isFinished() {
+            return finished;
+        }
+
+        public synchronized String getError() {
+            return error;
+        }
+
+        /**
+         * Waits for the job to finish
+         *
+         * @param timeout maximum time to wait in ms, 0 waits indefinitely
+         * @return the state when the job finished or the timeout expired
+         * @throws InterruptedException
+         */
+        public synchronized State await(long timeout) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (!finished) {
+                if (timeout <= 0) {
+                    wait();
+                } else {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    wait(remaining);
+                }
+            }
+            return state;
+        }
+
+        public synchronized JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("job", id);
+            json.put("status", state.toString());
+            if (error != null) {
+                json.put("error", error);
+            }
+            if (finished) {
+                json.put("finished", true);
+            }
+            return json;
+        }
+    }
+}
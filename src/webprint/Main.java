@@ -29,6 +29,7 @@ import java.awt.TrayIcon;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
+import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.ButtonGroup;
@@ -102,13 +103,34 @@ public class Main extends javax.swing.JFrame {
     
     private void startServer(){
         htserver = new Server(this);
+        // let queued print jobs finish when the app exits
+        Runtime.getRuntime().addShutdownHook(new Thread("webprint-shutdown") {
+            @Override
+            public void run() {
+                try {
+                    htserver.stop();
+                } catch (IOException ex) {
+                    Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+                }
+                acl.flush();
+            }
+        });
     }
     
     public String getServerError(){
         return htserver.error;
     }
 
-    public void saveAddress(String address, int port) {
+    /**
+     * Moves the server to the new address and saves it
+     *
+     * @param address
+     * @param port
+     * @throws IOException if the server could not listen on the new address,
+     * it keeps running on the old one
+     */
+    public void saveAddress(String address, int port) throws IOException {
+        htserver.restart(address, port);
         htserver.saveAddress(address, port);
     }
     
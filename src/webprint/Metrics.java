@@ -0,0 +1,292 @@
+/**
+ * This file is part of WebPrint
+ *
+ * @author Michael Wallace
+ *
+ * Copyright (C) 2015 Michael Wallace, WallaceIT
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the GNU Lesser General Public License (LGPL)
+ * version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ */
+package webprint;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Request and job statistics, served at /metrics in the Prometheus text
+ * format. Recording never locks: counters and histogram buckets are striped
+ * across cells by thread and only summed when scraped.
+ *
+ * @author michael
+ */
+class Metrics {
+
+    // request latency buckets, in seconds
+    private static final double[] LATENCY_BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+    // job size buckets, in bytes
+    private static final double[] SIZE_BUCKETS = {256, 1024, 4096, 16384, 65536, 262144, 1048576, 4194304, 16777216, 67108864};
+    private static final double NANOS = 1e9;
+    // time (ms) a printer, port or socket keeps its series after its last job
+    private static final long TARGET_IDLE = 10 * 60 * 1000;
+
+    private static final String[] ACTIONS = {"init", "listprinters", "printerinfo", "eventticket", "listports", "openport", "printraw", "printhtml", "jobstatus", "batch"};
+
+    private final ConcurrentHashMap<String, Histogram> requestTimes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Counter> requestErrors = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> jobSizes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> spoolTimes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Counter> jobFailures = new ConcurrentHashMap<>();
+    // time each target's labels were last used, so series for targets no longer printed to can be dropped
+    private final ConcurrentHashMap<String, Long> targetsUsed = new ConcurrentHashMap<>();
+
+    /**
+     * Records a handled request
+     *
+     * @param action the request action, unknown actions are counted together
+     * @param nanos time taken to handle it
+     * @param failed true if an error was returned
+     */
+    public void requestHandled(String action, long nanos, boolean failed) {
+        String labels = "action=\"" + (Arrays.asList(ACTIONS).contains(action) ? action : "other") + "\"";
+        histogram(requestTimes, labels, LATENCY_BUCKETS, NANOS).record(nanos);
+        if (failed) {
+            counter(requestErrors, labels).increment();
+        }
+    }
+
+    public void jobQueued(PrintJob job) {
+        histogram(jobSizes, "type=\"" + typeOf(job) + "\"", SIZE_BUCKETS, 1).record(job.getSize());
+    }
+
+    /**
+     * Records a job that has finished printing
+     *
+     * @param job
+     * @param nanos time spent sending the job to its target
+     * @param failed
+     */
+    public void jobFinished(PrintJob job, long nanos, boolean failed) {
+        String labels = "type=\"" + typeOf(job) + "\",target=\"" + escape(job.getTarget()) + "\"";
+        targetsUsed.put(labels, System.currentTimeMillis());
+        histogram(spoolTimes, labels, LATENCY_BUCKETS, NANOS).record(nanos);
+        if (failed) {
+            counter(jobFailures, labels).increment();
+        }
+    }
+
+    /**
+     * Drops the series of printers, ports and sockets that have had no jobs
+     * for a while, called when a target's queue empties
+     */
+    public void removeIdleTargets() {
+        long cutoff = System.currentTimeMillis() - TARGET_IDLE;
+        for (Map.Entry<String, Long> target : targetsUsed.entrySet()) {
+            if (target.getValue() < cutoff && targetsUsed.remove(target.getKey(), target.getValue())) {
+                spoolTimes.remove(target.getKey());
+                jobFailures.remove(target.getKey());
+            }
+        }
+    }
+
+    /**
+     * Writes every metric in the Prometheus text exposition format
+     *
+     * @param workers the current worker pool, may be null while restarting
+     * @param jobs
+     * @param events
+     * @return
+     */
+    public String scrape(WorkerPool workers, JobQueue jobs, EventHub events) {
+        StringBuilder out = new StringBuilder(4096);
+        writeHistograms(out, "webprint_request_duration_seconds", "Time taken to handle a request, by action", requestTimes);
+        writeCounters(out, "webprint_request_errors_total", "Requests that returned an error, by action", requestErrors);
+        writeHistograms(out, "webprint_job_size_bytes", "Size of queued print jobs", jobSizes);
+        writeHistograms(out, "webprint_spool_duration_seconds", "Time taken to send a job to its printer, port or socket", spoolTimes);
+        writeCounters(out, "webprint_job_failures_total", "Jobs that failed, by printer, port or socket", jobFailures);
+        writeGauge(out, "webprint_jobs_pending", "Jobs queued or printing", jobs.getPendingCount());
+        if (workers != null) {
+            writeGauge(out, "webprint_connections_active", "Open client connections", workers.getActiveConnections());
+            writeGauge(out, "webprint_connections_max", "Connection limit", workers.getMaxConnections());
+            writeGauge(out, "webprint_workers_active", "Worker threads handling a connection", workers.getActiveWorkers());
+            writeGauge(out, "webprint_workers_queue_depth", "Connections waiting for a worker thread", workers.getQueueDepth());
+            writeGauge(out, "webprint_streams_active", "Websockets and event streams running on stream threads", workers.getActiveStreams());
+            writeGauge(out, "webprint_streams_max", "Stream limit", workers.getMaxStreams());
+        }
+        writeGauge(out, "webprint_event_subscribers", "Open websockets and event streams", events.getSubscriberCount());
+        return out.toString();
+    }
+
+    private static String typeOf(PrintJob job) {
+        return job.getType().name().toLowerCase();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static Histogram histogram(ConcurrentHashMap<String, Histogram> family, String labels, double[] buckets, double scale) {
+        Histogram histogram = family.get(labels);
+        if (histogram == null) {
+            Histogram created = new Histogram(buckets, scale);
+            histogram = family.putIfAbsent(labels, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    private static Counter counter(ConcurrentHashMap<String, Counter> family, String labels) {
+        Counter counter = family.get(labels);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = family.putIfAbsent(labels, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    private static void writeHeader(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void writeGauge(StringBuilder out, String name, String help, long value) {
+        writeHeader(out, name, help, "gauge");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void writeCounters(StringBuilder out, String name, String help, Map<String, Counter> family) {
+        writeHeader(out, name, help, "counter");
+        for (Map.Entry<String, Counter> series : new TreeMap<>(family).entrySet()) {
+            out.append(name).append('{').append(series.getKey()).append("} ").append(series.getValue().sum()).append('\n');
+        }
+    }
+
+    private static void writeHistograms(StringBuilder out, String name, String help, Map<String, Histogram> family) {
+        writeHeader(out, name, help, "histogram");
+        for (Map.Entry<String, Histogram> series : new TreeMap<>(family).entrySet()) {
+            String labels = series.getKey();
+            Histogram histogram = series.getValue();
+            long[] counts = histogram.snapshot();
+            long cumulative = 0;
+            for (int i = 0; i < histogram.bounds.length; i++) {
+                cumulative += counts[i];
+                out.append(name).append("_bucket{").append(labels).append(",le=\"")
+                        .append(histogram.bounds[i]).append("\"} ").append(cumulative).append('\n');
+            }
+            cumulative += counts[histogram.bounds.length];
+            out.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+            out.append(name).append("_sum{").append(labels).append("} ").append(counts[counts.length - 1] / histogram.scale).append('\n');
+            out.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+        }
+    }
+
+    /**
+     * Cells spread across stripes, each stripe padded to its own cache
+     * lines. Threads update the stripe picked by their id so concurrent
+     * updates rarely touch the same line.
+     */
+    abstract static class Striped {
+
+        private static final int STRIPES = stripeCount();
+        private final AtomicLongArray cells;
+        private final int width;
+
+        Striped(int size) {
+            // 8 longs to a 64 byte cache line
+            this.width = (size + 7) / 8 * 8;
+            this.cells = new AtomicLongArray(STRIPES * width);
+        }
+
+        private static int stripeCount() {
+            int n = 1;
+            while (n < Runtime.getRuntime().availableProcessors() * 2 && n < 64) {
+                n <<= 1;
+            }
+            return n;
+        }
+
+        final void add(int cell, long value) {
+            int stripe = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+            cells.addAndGet(stripe * width + cell, value);
+        }
+
+        final long[] sums(int size) {
+            long[] sums = new long[size];
+            for (int stripe = 0; stripe < STRIPES; stripe++) {
+                for (int cell = 0; cell < size; cell++) {
+                    sums[cell] += cells.get(stripe * width + cell);
+                }
+            }
+            return sums;
+        }
+    }
+
+    static final class Counter extends Striped {
+
+        Counter() {
+            super(1);
+        }
+
+        void increment() {
+            add(0, 1);
+        }
+
+        long sum() {
+            return sums(1)[0];
+        }
+    }
+
+    /**
+     * Fixed bucket histogram. Values are recorded in base units (nanoseconds
+     * or bytes) and divided by the scale when written.
+     */
+    static final class Histogram extends Striped {
+
+        final double[] bounds;
+        final double scale;
+        private final long[] limits;
+
+        Histogram(double[] bounds, double scale) {
+            // one cell per bucket, an overflow bucket and the sum
+            super(bounds.length + 2);
+            this.bounds = bounds;
+            this.scale = scale;
+            this.limits = new long[bounds.length];
+            for (int i = 0; i < bounds.length; i++) {
+                limits[i] = (long) (bounds[i] * scale);
+            }
+        }
+
+        void record(long value) {
+            int bucket = 0;
+            while (bucket < limits.length && value > limits[bucket]) {
+                bucket++;
+            }
+            add(bucket, 1);
+            add(limits.length + 1, value);
+        }
+
+        /**
+         * @return the count in each bucket (not cumulative), then the sum
+         */
+        long[] snapshot() {
+            return sums(limits.length + 2);
+        }
+    }
+}
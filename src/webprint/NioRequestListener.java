@@ -0,0 +1,747 @@
+/**
+ * This file is part of WebPrint
+ *
+ * @author Michael Wallace
+ *
+ * Copyright (C) 2015 Michael Wallace, WallaceIT
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the GNU Lesser General Public License (LGPL)
+ * version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ */
+package webprint;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.MethodNotSupportedException;
+import org.apache.http.ProtocolException;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.UnsupportedHttpVersionException;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.DefaultHttpResponseFactory;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+
+/**
+ * Non-blocking alternative to Server.RequestListenerThread. A small number of
+ * I/O threads multiplex every connection with selectors; only complete
+ * requests are handed to the worker pool, so idle keep-alive connections do
+ * not hold a thread. Enabled with server.listener=nio
+ *
+ * @author michael
+ */
+class NioRequestListener implements Server.Listener {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int MAX_HEAD_SIZE = 16 * 1024;
+
+    private final Server server;
+    private final WorkerPool workers;
+    private final ServerSocketChannel serverChannel;
+    private final Reactor[] reactors;
+    private final int keepAlive;
+    private final long maxPayload;
+    private final AtomicInteger nextReactor = new AtomicInteger(0);
+
+    public NioRequestListener(String address, int port, Server cont) throws IOException {
+        this.server = cont;
+        this.workers = cont.workers;
+        this.keepAlive = cont.config.getInt("server.keepalive", 5000);
+        this.maxPayload = Math.min(cont.handler.admission.getMaxPayload(), Integer.MAX_VALUE - 8);
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.socket().bind(new InetSocketAddress(InetAddress.getByName(address), port), cont.config.getInt("server.backlog", 50));
+        int threads = Math.max(1, cont.config.getInt("nio.threads", 2));
+        this.reactors = new Reactor[threads];
+        for (int i = 0; i < threads; i++) {
+            reactors[i] = new Reactor("webprint-io-" + i);
+        }
+        // the first reactor also accepts connections
+        this.serverChannel.register(reactors[0].selector, SelectionKey.OP_ACCEPT);
+    }
+
+    @Override
+    public void startListening() {
+        System.out.println("Listening (nio) on " + serverChannel.socket().getLocalSocketAddress());
+        for (Reactor reactor : reactors) {
+            reactor.start();
+        }
+    }
+
+    @Override
+    public void stopAccepting() throws IOException {
+        final Reactor acceptor = reactors[0];
+        if (serverChannel.isOpen() && acceptor.isAlive()) {
+            // a registered channel keeps its socket until the selector drops the key, so close it on the reactor
+            final CountDownLatch closed = new CountDownLatch(1);
+            acceptor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        SelectionKey key = serverChannel.keyFor(acceptor.selector);
+                        if (key != null) {
+                            key.cancel();
+                            acceptor.selector.selectNow();
+                        }
+                        serverChannel.close();
+                    } catch (IOException ex) {
+                        System.err.println("I/O error closing listener: " + ex.getMessage());
+                    } finally {
+                        closed.countDown();
+                    }
+                }
+            });
+            try {
+                closed.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        serverChannel.close();
+    }
+
+    @Override
+    public void shutdown(long deadline) throws IOException {
+        stopAccepting();
+        for (Reactor reactor : reactors) {
+            reactor.deadline = deadline;
+            reactor.selector.wakeup();
+        }
+        for (Reactor reactor : reactors) {
+            try {
+                reactor.join();
+            } catch (InterruptedException ex) {
+                Logger.getLogger(NioRequestListener.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    private void accept() {
+        SocketChannel channel;
+        try {
+            while ((channel = serverChannel.accept()) != null) {
+                if (!workers.acquireConnection()) {
+                    System.err.println("Connection limit reached, rejecting " + channel.socket().getInetAddress());
+                    try {
+                        channel.write(ByteBuffer.wrap(Server.REJECT_RESPONSE));
+                    } catch (IOException ignore) {
+                    }
+                    channel.close();
+                    continue;
+                }
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                } catch (IOException ex) {
+                    // only this connection is lost, keep accepting
+                    abandon(channel, ex);
+                    continue;
+                }
+                final SocketChannel accepted = channel;
+                final Reactor reactor = reactors[(nextReactor.getAndIncrement() & Integer.MAX_VALUE) % reactors.length];
+                reactor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Connection conn = new Connection(accepted, reactor);
+                            conn.key = accepted.register(reactor.selector, SelectionKey.OP_READ, conn);
+                        } catch (IOException | ClosedSelectorException ex) {
+                            // eg. the reactor stopped while the connection was waiting for it
+                            abandon(accepted, ex);
+                        }
+                    }
+                });
+            }
+        } catch (IOException ex) {
+            System.err.println("I/O error accepting connection: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Closes a connection that could not be set up and frees its slot
+     */
+    private void abandon(SocketChannel channel, Exception ex) {
+        System.err.println("I/O error setting up connection: " + ex.getMessage());
+        try {
+            channel.close();
+        } catch (IOException ignore) {
+        }
+        workers.releaseConnection();
+    }
+
+    /**
+     * Runs a complete request through the shared request handler and
+     * serializes the response. Called on a worker thread.
+     */
+    private void process(Connection conn, HttpRequest request) {
+        BasicHttpContext context = new BasicHttpContext(null);
+        context.setAttribute(HttpCoreContext.HTTP_REQUEST, request);
+        HttpResponse response = DefaultHttpResponseFactory.INSTANCE.newHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, context);
+        boolean keepOpen;
+        byte[] bytes;
+        Server.ConnectionUpgrade upgrade;
+        try {
+            try {
+                server.handler.handle(request, response, context);
+            } catch (HttpException ex) {
+                response = DefaultHttpResponseFactory.INSTANCE.newHttpResponse(HttpVersion.HTTP_1_0, errorStatus(ex), context);
+                response.setEntity(new StringEntity(ex.getMessage() == null ? ex.toString() : ex.getMessage()));
+            }
+            server.httpproc.process(response, context);
+            keepOpen = DefaultConnectionReuseStrategy.INSTANCE.keepAlive(response, context);
+            upgrade = (Server.ConnectionUpgrade) context.getAttribute(Server.UPGRADE_ATTRIBUTE);
+            final HttpEntity entity = response.getEntity();
+            if (upgrade == null && entity != null && entity.isStreaming() && entity.getContentLength() < 0
+                    && !"HEAD".equalsIgnoreCase(request.getRequestLine().getMethod())) {
+                // bodies of unknown length, such as event streams, are written on a stream thread and end with the connection
+                response.removeHeaders("Transfer-Encoding");
+                response.setHeader("Connection", "close");
+                response.setEntity(null);
+                keepOpen = true;
+                upgrade = new Server.ConnectionUpgrade() {
+                    @Override
+                    public void run(InputStream in, OutputStream out) throws IOException {
+                        entity.writeTo(out);
+                    }
+                };
+            }
+            bytes = serialize(request, response);
+        } catch (IOException | HttpException | RuntimeException ex) {
+            System.err.println("Error processing request: " + ex.getMessage());
+            conn.reactor.submit(conn.closeTask());
+            return;
+        }
+        conn.reactor.submit(conn.sendTask(bytes, keepOpen, upgrade));
+    }
+
+    private static int errorStatus(HttpException ex) {
+        if (ex instanceof MethodNotSupportedException) {
+            return HttpStatus.SC_NOT_IMPLEMENTED;
+        } else if (ex instanceof UnsupportedHttpVersionException) {
+            return HttpStatus.SC_HTTP_VERSION_NOT_SUPPORTED;
+        } else if (ex instanceof ProtocolException) {
+            return HttpStatus.SC_BAD_REQUEST;
+        }
+        return HttpStatus.SC_INTERNAL_SERVER_ERROR;
+    }
+
+    private static byte[] serialize(HttpRequest request, HttpResponse response) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        StringBuilder head = new StringBuilder(256);
+        head.append(response.getStatusLine().getProtocolVersion()).append(' ')
+                .append(response.getStatusLine().getStatusCode()).append(' ');
+        if (response.getStatusLine().getReasonPhrase() != null) {
+            head.append(response.getStatusLine().getReasonPhrase());
+        }
+        head.append("\r\n");
+        for (Header header : response.getAllHeaders()) {
+            head.append(header.getName()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        head.append("\r\n");
+        out.write(head.toString().getBytes(ASCII));
+        HttpEntity entity = response.getEntity();
+        String method = request.getRequestLine().getMethod();
+        if (entity != null && !"HEAD".equalsIgnoreCase(method)) {
+            entity.writeTo(out);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] simpleResponse(int status, String reason) {
+        return ("HTTP/1.1 " + status + " " + reason + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(ASCII);
+    }
+
+    /**
+     * Reads from a blocking channel. Unlike the socket adaptor streams, reads
+     * and writes do not share a lock, so one thread can wait for data while
+     * another writes.
+     */
+    static class ChannelInputStream extends InputStream {
+
+        private final SocketChannel channel;
+
+        ChannelInputStream(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            return channel.read(ByteBuffer.wrap(b, off, len));
+        }
+    }
+
+    static class ChannelOutputStream extends OutputStream {
+
+        private final SocketChannel channel;
+
+        ChannelOutputStream(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        /**
+         * Closes the channel, which also ends a read or write blocked on it
+         */
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    class Reactor extends Thread {
+
+        final Selector selector;
+        final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // set when shutting down, connections are closed once idle or at this time
+        volatile long deadline = 0;
+
+        Reactor(String name) throws IOException {
+            super(name);
+            setDaemon(false);
+            selector = Selector.open();
+        }
+
+        void submit(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long lastSweep = System.currentTimeMillis();
+            for (;;) {
+                try {
+                    selector.select(deadline > 0 ? 100 : 1000);
+                } catch (IOException ex) {
+                    System.err.println("I/O error in selector: " + ex.getMessage());
+                    break;
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection conn = (Connection) key.attachment();
+                    if (key.isReadable()) {
+                        conn.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        conn.flush();
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (deadline > 0) {
+                    if (!sweepIdle(now, true) || now >= deadline) {
+                        break;
+                    }
+                } else if (now - lastSweep >= 1000) {
+                    lastSweep = now;
+                    sweepIdle(now, false);
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ignore) {
+            }
+        }
+
+        /**
+         * Closes idle connections
+         *
+         * @param now
+         * @param draining close every connection without a request in
+         * progress, instead of only those idle for the keep-alive time
+         * @return true if any connections are still open
+         */
+        private boolean sweepIdle(long now, boolean draining) {
+            boolean open = false;
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                if (key.attachment() instanceof Connection) {
+                    Connection conn = (Connection) key.attachment();
+                    if (conn.closed) {
+                        continue;
+                    }
+                    if (!conn.processing && conn.out.isEmpty()
+                            && (draining ? conn.method == null : now - conn.lastActive > keepAlive)) {
+                        conn.close();
+                    } else {
+                        open = true;
+                    }
+                }
+            }
+            return open;
+        }
+    }
+
+    /**
+     * Per-connection parser state. Only touched from its reactor thread.
+     */
+    class Connection {
+
+        final SocketChannel channel;
+        final Reactor reactor;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(8 * 1024);
+        final LinkedList<ByteBuffer> out = new LinkedList<>();
+        long lastActive = System.currentTimeMillis();
+        boolean processing = false;
+        boolean closeAfterWrite = false;
+        boolean closed = false;
+        // current request
+        String method;
+        String uri;
+        ProtocolVersion version;
+        List<String[]> headers;
+        byte[] body;
+        ByteBuffer bodyBuf;
+        // protocol to switch to once the response has been written
+        Server.ConnectionUpgrade upgrade;
+
+        Connection(SocketChannel channel, Reactor reactor) {
+            this.channel = channel;
+            this.reactor = reactor;
+        }
+
+        void onReadable() {
+            int read;
+            try {
+                read = channel.read(bodyBuf != null ? bodyBuf : in);
+            } catch (IOException ex) {
+                close();
+                return;
+            }
+            if (read < 0) {
+                close();
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+            if (bodyBuf == null && !in.hasRemaining()) {
+                if (in.capacity() >= MAX_HEAD_SIZE) {
+                    reject(431, "Request Header Fields Too Large");
+                    return;
+                }
+                ByteBuffer larger = ByteBuffer.allocate(in.capacity() * 2);
+                in.flip();
+                larger.put(in);
+                in = larger;
+            }
+            parse();
+        }
+
+        private void parse() {
+            if (processing || closed) {
+                return;
+            }
+            if (method == null && !parseHead()) {
+                return;
+            }
+            if (bodyBuf == null || !bodyBuf.hasRemaining()) {
+                dispatch();
+            }
+        }
+
+        private boolean parseHead() {
+            byte[] buf = in.array();
+            int end = -1;
+            for (int i = 3; i < in.position(); i++) {
+                if (buf[i] == '\n' && buf[i - 1] == '\r' && buf[i - 2] == '\n' && buf[i - 3] == '\r') {
+                    end = i + 1;
+                    break;
+                }
+            }
+            if (end < 0) {
+                return false;
+            }
+            String[] lines = new String(buf, 0, end - 4, ASCII).split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3) {
+                reject(400, "Bad Request");
+                return false;
+            }
+            method = requestLine[0].toUpperCase(Locale.ENGLISH);
+            uri = requestLine[1];
+            version = "HTTP/1.0".equals(requestLine[2]) ? HttpVersion.HTTP_1_0 : HttpVersion.HTTP_1_1;
+            headers = new ArrayList<>(lines.length);
+            long contentLength = 0;
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = lines[i].substring(0, colon).trim();
+                String value = lines[i].substring(colon + 1).trim();
+                headers.add(new String[]{name, value});
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    try {
+                        contentLength = Long.parseLong(value);
+                    } catch (NumberFormatException ex) {
+                        reject(400, "Bad Request");
+                        return false;
+                    }
+                } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                    reject(411, "Length Required");
+                    return false;
+                }
+            }
+            if (contentLength < 0 || contentLength > maxPayload) {
+                // rejected before any of the body is buffered
+                reject(413, "Payload Too Large");
+                return false;
+            }
+            // keep any bytes after the head, they belong to the body or the next request
+            in.flip();
+            in.position(end);
+            if (contentLength > 0) {
+                body = new byte[(int) contentLength];
+                bodyBuf = ByteBuffer.wrap(body);
+                int n = Math.min(in.remaining(), body.length);
+                in.get(body, 0, n);
+                bodyBuf.position(n);
+            }
+            in.compact();
+            return true;
+        }
+
+        private void dispatch() {
+            processing = true;
+            key.interestOps(0);
+            final HttpRequest request;
+            if (body != null) {
+                BasicHttpEntityEnclosingRequest entityRequest = new BasicHttpEntityEnclosingRequest(method, uri, version);
+                entityRequest.setEntity(new ByteArrayEntity(body));
+                request = entityRequest;
+            } else {
+                request = new BasicHttpRequest(method, uri, version);
+            }
+            for (String[] header : headers) {
+                request.addHeader(header[0], header[1]);
+            }
+            method = null;
+            uri = null;
+            headers = null;
+            body = null;
+            bodyBuf = null;
+            if (!workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    process(Connection.this, request);
+                }
+            })) {
+                System.err.println("Worker queue full, rejecting request");
+                reject(503, "Service Unavailable");
+            }
+        }
+
+        private void reject(int status, String reason) {
+            processing = true;
+            send(simpleResponse(status, reason), false);
+        }
+
+        Runnable sendTask(final byte[] bytes, final boolean keepOpen, final Server.ConnectionUpgrade upgrade) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    Connection.this.upgrade = upgrade;
+                    send(bytes, keepOpen);
+                }
+            };
+        }
+
+        Runnable closeTask() {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    close();
+                }
+            };
+        }
+
+        void send(byte[] bytes, boolean keepOpen) {
+            if (closed) {
+                return;
+            }
+            out.add(ByteBuffer.wrap(bytes));
+            closeAfterWrite = !keepOpen;
+            flush();
+        }
+
+        void flush() {
+            try {
+                while (!out.isEmpty()) {
+                    ByteBuffer head = out.getFirst();
+                    channel.write(head);
+                    if (head.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    out.removeFirst();
+                }
+            } catch (IOException ex) {
+                close();
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+            if (closeAfterWrite) {
+                close();
+                return;
+            }
+            if (upgrade != null) {
+                // the key is deregistered by the next select, after which the channel can block
+                key.cancel();
+                reactor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        handOver();
+                    }
+                });
+                return;
+            }
+            // ready for the next request, which may already be buffered
+            processing = false;
+            key.interestOps(SelectionKey.OP_READ);
+            parse();
+        }
+
+        /**
+         * Moves the connection off the selector and runs the upgraded
+         * protocol on a stream thread with blocking streams
+         */
+        private void handOver() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            final Server.ConnectionUpgrade protocol = upgrade;
+            try {
+                channel.configureBlocking(true);
+                channel.socket().setKeepAlive(true);
+            } catch (IOException ex) {
+                System.err.println("I/O error switching protocols: " + ex.getMessage());
+                closeChannel();
+                return;
+            }
+            // the client should wait for the 101 response, but keep anything it already sent
+            in.flip();
+            byte[] buffered = new byte[in.remaining()];
+            in.get(buffered);
+            final InputStream input = new SequenceInputStream(new ByteArrayInputStream(buffered), new ChannelInputStream(channel));
+            final OutputStream output = new ChannelOutputStream(channel);
+            if (!workers.executeStream(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        protocol.run(input, output);
+                    } catch (IOException ex) {
+                        System.err.println("I/O error: " + ex.getMessage());
+                    } finally {
+                        closeChannel();
+                    }
+                }
+            })) {
+                System.err.println("Stream limit reached, closing upgraded connection");
+                closeChannel();
+            }
+        }
+
+        private void closeChannel() {
+            try {
+                channel.close();
+            } catch (IOException ignore) {
+            }
+            workers.releaseConnection();
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignore) {
+            }
+            workers.releaseConnection();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/**
+ * This file is part of WebPrint
+ *
+ * @author Michael Wallace
+ *
+ * Copyright (C) 2015 Michael Wallace, WallaceIT
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the GNU Lesser General Public License (LGPL)
+ * version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ */
+package webprint;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import javax.print.PrintException;
+import javax.print.PrintService;
+import javax.print.event.PrintJobListener;
+import qz.Base64;
+import qz.ByteArrayBuilder;
+import qz.PrintIPP;
+import qz.PrintManager;
+import qz.PrintRaw.JobState;
+import qz.exception.NullPrintServiceException;
+import qz.json.JSONObject;
+
+/**
+ * A single print request. Jobs are immutable and print through their own
+ * PrintManager, so concurrent jobs never share buffers, printer selection or
+ * error state. Only the DeviceRegistry is shared.
+ *
+ * @author michael
+ */
+final class PrintJob {
+
+    enum Type {
+        RAW, HTML, SERIAL, SOCKET
+    }
+
+    private final Type type;
+    private final String target;
+    // the decoded raw data, which may not fill its whole array
+    private final ByteBuffer data;
+    private final String html;
+    private final String origin;
+    private final PrintService service;
+
+    PrintJob(Type type, String target, ByteBuffer data, String html, String origin) {
+        this(type, target, data, html, origin, null);
+    }
+
+    private PrintJob(Type type, String target, ByteBuffer data, String html, String origin, PrintService service) {
+        this.type = type;
+        this.target = target;
+        this.data = data;
+        this.html = html;
+        this.origin = origin;
+        this.service = service;
+    }
+
+    /**
+     * Returns a copy of this job that prints to an already resolved printer
+     *
+     * @param service
+     * @return
+     */
+    PrintJob withPrintService(PrintService service) {
+        return new PrintJob(type, target, data, html, origin, service);
+    }
+
+    /**
+     * Creates a job from a printraw or printhtml request
+     *
+     * @param jrequest
+     * @return
+     * @throws JobException if the request does not specify a valid target
+     */
+    static PrintJob fromRequest(JSONObject jrequest) throws JobException {
+        return fromRequest(jrequest, null);
+    }
+
+    /**
+     * Creates a job from a printraw or printhtml request
+     *
+     * @param jrequest
+     * @param data already decoded raw data, or null to decode the "data" field
+     * @return
+     * @throws JobException if the request does not specify a valid target
+     */
+    static PrintJob fromRequest(JSONObject jrequest, ByteBuffer data) throws JobException {
+        String origin = jrequest.optString("origin");
+        if (jrequest.getString("a").equals("printhtml")) {
+            return new PrintJob(Type.HTML, jrequest.getString("printer"), null, jrequest.getString("data"), origin);
+        }
+        Type type;
+        String target;
+        if (jrequest.has("printer")) {
+            type = Type.RAW;
+            target = jrequest.getString("printer");
+        } else if (jrequest.has("port")) {
+            type = Type.SERIAL;
+            target = jrequest.getString("port");
+        } else if (jrequest.has("socket")) {
+            type = Type.SOCKET;
+            target = jrequest.getString("socket");
+        } else {
+            throw new JobException("No printer specified in the request.");
+        }
+        if (data != null) {
+            return new PrintJob(type, target, data, null, origin);
+        }
+        try {
+            return new PrintJob(type, target, ByteBuffer.wrap(Base64.decode(jrequest.getString("data"))), null, origin);
+        } catch (IOException ex) {
+            throw new JobException("Failed to print: " + ex.getMessage());
+        }
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public String getOrigin() {
+        return origin;
+    }
+
+    /**
+     * @return the printer the job was resolved to, or null if it has not
+     * been looked up
+     */
+    PrintService getPrintService() {
+        return service;
+    }
+
+    /**
+     * @return the device the job prints to: the name of the resolved
+     * printer, otherwise the target as given
+     */
+    public String getDevice() {
+        return service != null ? service.getName() : target;
+    }
+
+    /**
+     * @return the size of the data to print, in bytes (characters for HTML)
+     */
+    public int getSize() {
+        return data != null ? data.remaining() : html.length();
+    }
+
+    /**
+     * @return true if the target is a named printer rather than a port or socket
+     */
+    public boolean isPrinterJob() {
+        return type == Type.RAW || type == Type.HTML;
+    }
+
+    /**
+     * Prints the job, blocking until it has been handed to the device
+     *
+     * @param devices
+     * @param listener notified of print service events for raw printer jobs,
+     * may be null
+     * @param timeout time (ms) to wait for the print service to finish a raw
+     * printer job
+     * @param timing marks the printer lookup
+     * @return COMPLETED, or SENT if the print service took a raw job but did
+     * not report that it finished
+     * @throws JobException
+     */
+    public JobState execute(DeviceRegistry devices, PrintJobListener listener, long timeout, ServerTiming timing) throws JobException {
+        if (type == Type.SERIAL) {
+            // serial writes need the exact bytes, this copies only if the array is not full
+            devices.send(target, new ByteArrayBuilder().append(data).getByteArray(), origin);
+            return JobState.COMPLETED;
+        }
+        PrintManager pManager = new PrintManager();
+        if (type == Type.SOCKET) {
+            pManager.append(data);
+            String[] parts = target.split(":");
+            try {
+                if (parts.length < 2) {
+                    pManager.printToHost(parts[0]);
+                } else {
+                    pManager.printToHost(parts[0], parts[1]);
+                }
+            } catch (NumberFormatException | IOException | NullPrintServiceException ex) {
+                throw new JobException("Failed to print: " + ex.getMessage());
+            }
+            return JobState.COMPLETED;
+        }
+        if (service != null) {
+            pManager.setPrinter(target, service);
+        } else if (!pManager.setPrinter(target)) {
+            throw new JobException("Failed to print: printer " + target + " not found");
+        }
+        timing.mark("lookup");
+        if (listener != null) {
+            pManager.setPrintJobListener(listener);
+        }
+        pManager.setPrintTimeout(timeout);
+        boolean printed;
+        // locked by the printer found, every name for a printer gets the same lock
+        synchronized (devices.getPrinterLock(pManager.getPrintService().getName())) {
+            if (type == Type.HTML) {
+                pManager.appendHTML(html);
+                printed = pManager.printHTML(target);
+            } else {
+                pManager.append(data);
+                printed = pManager.printRaw(target);
+            }
+        }
+        if (!printed) {
+            Throwable t = pManager.getException();
+            throw new JobException("Failed to print: " + (t != null ? t.getMessage() : "printer " + target + " not found"));
+        }
+        // no-more-events only says the print service stops reporting, not that the job finished
+        return type == Type.RAW && pManager.getLastJobState() != JobState.COMPLETED ? JobState.SENT : JobState.COMPLETED;
+    }
+
+    /**
+     * Prints a raw job through IPP, blocking until the printer reports it
+     * finished or the timeout expires
+     *
+     * @param devices
+     * @param printer
+     * @param listener notified of the job's progress on the printer
+     * @param timeout time (ms) to follow the job for once it was sent
+     * @return COMPLETED, or SENT if the job was left to the printer before
+     * it reported the job finished
+     * @throws JobException
+     */
+    public JobState executeIpp(DeviceRegistry devices, PrintIPP printer, PrintIPP.JobListener listener, long timeout) throws JobException {
+        try {
+            synchronized (devices.getPrinterLock(printer.getPrinterUri())) {
+                return printer.print(data, "WebPrint", listener, timeout) ? JobState.COMPLETED : JobState.SENT;
+            }
+        } catch (PrintException | IOException ex) {
+            throw new JobException("Failed to print: " + ex.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new JobException("Failed to print: interrupted");
+        }
+    }
+
+    /**
+     * Thrown when a job cannot be printed, the message is suitable for
+     * returning to the client
+     */
+    static class JobException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        public JobException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * This file is part of WebPrint
+ *
+ * @author Michael Wallace
+ *
+ * Copyright (C) 2015 Michael Wallace, WallaceIT
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the GNU Lesser General Public License (LGPL)
+ * version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ */
+package webprint;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import qz.Base64;
+import qz.json.JSONException;
+import qz.json.JSONObject;
+import qz.json.JSONTokener;
+
+/**
+ * Reads a request straight from the request body. For printraw requests
+ * the base64 "data" field is decoded as it is read instead of being kept as
+ * a string, so the payload only exists once in memory, as raw bytes. The
+ * decoded bytes are handed on in the buffer they were decoded into, which is
+ * sized from the content length and so is usually a little larger than the
+ * data, rather than being copied into an exact array.
+ *
+ * The action ("a") must come before "data" for this to happen, which is the
+ * order webprint.js sends. Otherwise data is kept as a normal string field.
+ *
+ * @author michael
+ */
+class RequestParser {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final JSONTokener x;
+    private final long contentLength;
+    private ByteBuffer payload;
+
+    public RequestParser(InputStream in, long contentLength) {
+        this.x = new JSONTokener(new InputStreamReader(in, UTF8));
+        this.contentLength = contentLength;
+    }
+
+    /**
+     * Parses the request object
+     *
+     * @return the request fields, without "data" if it was decoded
+     * @throws JSONException if the body is not a valid JSON object or the
+     * data is not valid base64
+     */
+    public JSONObject parse() throws JSONException {
+        JSONObject json = new JSONObject();
+        if (x.nextClean() != '{') {
+            throw x.syntaxError("A JSONObject text must begin with '{'");
+        }
+        char c = x.nextClean();
+        if (c == '}') {
+            return json;
+        }
+        for (;;) {
+            if (c != '"') {
+                throw x.syntaxError("Expected a quoted key");
+            }
+            String key = x.nextString('"');
+            if (x.nextClean() != ':') {
+                throw x.syntaxError("Expected a ':' after a key");
+            }
+            if (key.equals("data") && "printraw".equals(json.optString("a"))) {
+                if (x.nextClean() == '"') {
+                    payload = decodeString();
+                } else {
+                    x.back();
+                    json.put(key, x.nextValue());
+                }
+            } else {
+                json.put(key, x.nextValue());
+            }
+            c = x.nextClean();
+            if (c == '}') {
+                return json;
+            }
+            if (c != ',') {
+                throw x.syntaxError("Expected a ',' or '}'");
+            }
+            c = x.nextClean();
+        }
+    }
+
+    /**
+     * @return the decoded "data" field of a printraw request, or null if it
+     * was not streamed
+     */
+    public ByteBuffer getPayload() {
+        return payload;
+    }
+
+    /**
+     * Reads a whole binary request body
+     *
+     * @param in
+     * @param contentLength the declared length, or a negative value if unknown
+     * @return the body bytes
+     * @throws IOException
+     */
+    static ByteBuffer readBody(InputStream in, long contentLength) throws IOException {
+        SpoolBuffer spool = new SpoolBuffer(contentLength >= 0 ? (int) Math.min(contentLength, Integer.MAX_VALUE - 8) : 8192);
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            spool.write(buffer, 0, read);
+        }
+        return spool.toByteBuffer();
+    }
+
+    /**
+     * Decodes the rest of a base64 JSON string, the opening quote has already
+     * been read
+     */
+    private ByteBuffer decodeString() throws JSONException {
+        // the payload makes up nearly all of the body, so this rarely grows
+        SpoolBuffer spool = new SpoolBuffer(contentLength > 0 ? (int) Math.min(contentLength / 4 * 3 + 3, Integer.MAX_VALUE - 8) : 8192);
+        Base64.OutputStream decoder = new Base64.OutputStream(spool, Base64.DECODE);
+        try {
+            for (;;) {
+                char c = x.next();
+                if (c == '"') {
+                    break;
+                }
+                if (c == '\\') {
+                    c = x.next();
+                    if (c == 'u') {
+                        c = (char) Integer.parseInt(x.next(4), 16);
+                    } else if (c == 'n' || c == 'r' || c == 't') {
+                        continue; // line breaks are allowed in base64
+                    }
+                }
+                if (c == 0 || c > 127) {
+                    throw x.syntaxError("Invalid character in base64 data");
+                }
+                decoder.write(c);
+            }
+            decoder.flushBase64();
+        } catch (IOException | NumberFormatException ex) {
+            throw x.syntaxError("Invalid base64 data: " + ex.getMessage());
+        }
+        return spool.toByteBuffer();
+    }
+
+    /**
+     * Growable buffer that hands over what was written without copying it
+     */
+    static class SpoolBuffer extends ByteArrayOutputStream {
+
+        public SpoolBuffer(int size) {
+            super(size);
+        }
+
+        /**
+         * @return a view of the bytes written, backed by the buffer's array
+         */
+        public ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
@@ -20,29 +20,42 @@ package webprint;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.BindException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertificateEncodingException;
+import java.util.HashMap;
 import java.util.Locale;
-import java.util.UUID;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.print.PrintService;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
 import org.apache.http.ConnectionClosedException;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpResponseInterceptor;
-import org.apache.http.HttpServerConnection;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
 import org.apache.http.MethodNotSupportedException;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.DefaultConnectionReuseStrategy;
 import org.apache.http.impl.DefaultHttpResponseFactory;
@@ -61,10 +74,9 @@ import org.apache.http.protocol.ResponseConnControl;
 import org.apache.http.protocol.ResponseContent;
 import org.apache.http.protocol.ResponseDate;
 import org.apache.http.protocol.ResponseServer;
-import qz.PrintManager;
 import qz.PrintServiceMatcher;
-import qz.exception.NullPrintServiceException;
 import qz.json.JSONArray;
+import qz.json.JSONException;
 import qz.json.JSONObject;
 
 /**
@@ -74,7 +86,14 @@ import qz.json.JSONObject;
 class Server {
 
     private Main app;
-    private RequestListenerThread thread;
+    private Listener listener;
+    // optional HTTPS listener, see startTls()
+    private Listener tlsListener;
+    private TlsContext tls;
+    WorkerPool workers;
+    HttpHandler handler;
+    HttpProcessor httpproc;
+    final ServerConfig config;
     static JFrame jframe;
     private String address = "127.0.0.1";
     private int port = 8080;
@@ -85,6 +104,7 @@ class Server {
         jframe = new JFrame();
         jframe.setAlwaysOnTop(true);
         jframe.setAutoRequestFocus(true);
+        config = new ServerConfig();
         loadConfig();
         try {
             start();
@@ -142,11 +162,114 @@ class Server {
     }
     
     public final void start() throws IOException{
-        thread = new RequestListenerThread(address, port, this);
-        thread.setDaemon(false);
-        thread.start();
+        if (workers == null) {
+            workers = new WorkerPool(config);
+        }
+        if (handler == null) {
+            handler = new HttpHandler(this);
+            httpproc = createHttpProcessor();
+            PrintServiceMatcher.addListener(handler.printerEvents);
+            PrintServiceMatcher.startRefresh(config.getLong("printers.refresh", 30000));
+        }
+        listener = createListener(address, port);
+        listener.startListening();
+        if (tlsListener == null && config.getInt("tls.port", 0) > 0) {
+            startTls();
+        }
         System.out.println("Server started");
     }
+
+    /**
+     * Starts the HTTPS listener on tls.address:tls.port, which lets secure
+     * pages call the server directly instead of through the relay window.
+     * It always uses blocking connections, and does not move when the
+     * address is changed in the settings. A failure here leaves the plain
+     * HTTP listener running.
+     */
+    private void startTls() {
+        try {
+            if (tls == null) {
+                tls = new TlsContext(config);
+            }
+            ServerSocket socket = tls.createServerSocket(config.getString("tls.address", "127.0.0.1"),
+                    config.getInt("tls.port", 0), config.getInt("server.backlog", 50));
+            tlsListener = new RequestListenerThread(socket, this);
+            tlsListener.startListening();
+        } catch (IOException | GeneralSecurityException ex) {
+            Logger.getLogger(Server.class.getName()).log(Level.SEVERE, "HTTPS listener not started", ex);
+        }
+    }
+
+    private Listener createListener(String address, int port) throws IOException {
+        if ("nio".equals(config.getString("server.listener", "blocking"))) {
+            return new NioRequestListener(address, port, this);
+        }
+        return new RequestListenerThread(address, port, this);
+    }
+
+    /**
+     * Moves the server to a new address and port. The new listener is bound
+     * before the old one stops accepting, and requests already received by
+     * the old listener are finished in the background, so no print requests
+     * are dropped. If the new address overlaps the old one (eg. the same port
+     * on 0.0.0.0) the old listener has to stop accepting first.
+     *
+     * @param address
+     * @param port
+     * @throws IOException if the new address cannot be bound, the server
+     * keeps running on the old one
+     */
+    public synchronized void restart(String address, int port) throws IOException {
+        if (workers == null || handler == null) {
+            this.address = address;
+            this.port = port;
+            start();
+            error = "";
+            return;
+        }
+        final Listener old = listener;
+        Listener next;
+        try {
+            next = createListener(address, port);
+        } catch (BindException ex) {
+            if (old == null || port != this.port) {
+                throw ex;
+            }
+            old.stopAccepting();
+            try {
+                next = createListener(address, port);
+            } catch (IOException retry) {
+                listener = createListener(this.address, this.port);
+                listener.startListening();
+                old.shutdown(drainDeadline());
+                throw retry;
+            }
+        }
+        next.startListening();
+        listener = next;
+        this.address = address;
+        this.port = port;
+        error = "";
+        if (old != null) {
+            Thread drain = new Thread("webprint-drain") {
+                @Override
+                public void run() {
+                    try {
+                        old.shutdown(drainDeadline());
+                    } catch (IOException ex) {
+                        Logger.getLogger(Server.class.getName()).log(Level.WARNING, null, ex);
+                    }
+                }
+            };
+            drain.setDaemon(true);
+            drain.start();
+        }
+        System.out.println("Server restarted");
+    }
+
+    private long drainDeadline() {
+        return System.currentTimeMillis() + config.getLong("server.drain", 10000);
+    }
     
     public void saveAddress(String address, int port) {
         if (address!=null)
@@ -156,197 +279,892 @@ class Server {
         saveConfig();
     }
 
-    public void stop() throws IOException {
-        this.thread.serversocket.close();
-        this.thread.interrupt();
-        try {
-            this.thread.join();
-        } catch (InterruptedException ex) {
-            Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+    /**
+     * Stops accepting connections, lets queued jobs and requests in progress
+     * finish (for at most server.drain ms), then shuts down
+     *
+     * @throws IOException
+     */
+    public synchronized void stop() throws IOException {
+        long deadline = drainDeadline();
+        if (tlsListener != null) {
+            tlsListener.shutdown(deadline);
+            tlsListener = null;
+        }
+        if (listener != null) {
+            listener.shutdown(deadline);
+            listener = null;
+        }
+        if (handler != null) {
+            try {
+                if (!handler.jobs.drain(deadline)) {
+                    System.err.println(handler.jobs.getPendingCount() + " print jobs did not finish before shutdown");
+                }
+            } catch (InterruptedException ex) {
+                Logger.getLogger(Server.class.getName()).log(Level.WARNING, null, ex);
+            }
+            // job responses have been sent, now end the websockets and event streams
+            handler.events.closeAll();
+            handler.jobs.shutdown();
+            PrintServiceMatcher.removeListener(handler.printerEvents);
+            PrintServiceMatcher.stopRefresh();
+            handler = null;
+        }
+        if (workers != null) {
+            workers.shutdown(deadline);
+            workers = null;
         }
-        this.thread = null;
         System.out.println("Server shutdown");
     }
 
+    // request fields that can be sent as headers with a binary upload
+    static final String[] RAW_FIELDS = {"a", "printer", "port", "socket", "origin", "cookie", "async", "idempotencyKey"};
+
+    // request headers pages may send cross-origin, announced in preflight responses
+    static final String CORS_HEADERS = "Content-Type, X-Requested-With, Idempotency-Key, X-WebPrint-Action, X-WebPrint-Printer, "
+            + "X-WebPrint-Port, X-WebPrint-Socket, X-WebPrint-Origin, X-WebPrint-Cookie, X-WebPrint-Async, X-WebPrint-IdempotencyKey";
+
+    static JSONObject parseQuery(String query) throws IOException {
+        JSONObject params = new JSONObject();
+        for (String param : query.split("&")) {
+            int eq = param.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"), URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    static String readResource(String name) throws IOException {
+        try (InputStream in = Server.class.getResourceAsStream(name)) {
+            if (in == null) {
+                throw new FileNotFoundException(name);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString("UTF-8");
+        }
+    }
+
+    static HttpProcessor createHttpProcessor() {
+        // Set up the HTTP protocol processor
+        return new ImmutableHttpProcessor(new HttpResponseInterceptor[]{
+            new ResponseDate(),
+            new ResponseServer(),
+            finalResponsesOnly(new ResponseContent()),
+            finalResponsesOnly(new ResponseConnControl())
+        });
+    }
+
+    /**
+     * Skips an interceptor for 1xx responses, a 101 switching protocols
+     * response has no body and keeps its own Connection header
+     */
+    private static HttpResponseInterceptor finalResponsesOnly(final HttpResponseInterceptor interceptor) {
+        return new HttpResponseInterceptor() {
+            @Override
+            public void process(HttpResponse response, org.apache.http.protocol.HttpContext context) throws HttpException, IOException {
+                if (response.getStatusLine().getStatusCode() >= HttpStatus.SC_OK) {
+                    interceptor.process(response, context);
+                }
+            }
+        };
+    }
+
+    // context attribute set by a handler to take over the connection once the response is sent
+    static final String UPGRADE_ATTRIBUTE = "webprint.upgrade";
+
+    /**
+     * Takes over a connection after a 101 response, eg. a websocket
+     */
+    interface ConnectionUpgrade {
+
+        /**
+         * Runs the new protocol, the connection is closed on return
+         *
+         * @param in
+         * @param out
+         * @throws IOException
+         */
+        void run(InputStream in, OutputStream out) throws IOException;
+    }
+
+    /**
+     * Accepts connections and feeds requests to the shared HttpHandler
+     */
+    interface Listener {
+
+        void startListening();
+
+        /**
+         * Closes the listening socket, returning once the address can be
+         * bound again
+         *
+         * @throws IOException
+         */
+        void stopAccepting() throws IOException;
+
+        /**
+         * Stops accepting and waits for requests already received to be
+         * answered before closing their connections
+         *
+         * @param deadline time (ms) after which busy connections are closed
+         * anyway
+         * @throws IOException
+         */
+        void shutdown(long deadline) throws IOException;
+    }
+
     // Server threads
     class HttpHandler implements HttpRequestHandler {
 
+        // longest a jobstatus request may block waiting for a job to finish (ms)
+        static final long MAX_STATUS_WAIT = 30000;
+
         Server context;
-        PrintManager pManager;
+        final EventHub events;
+        final Metrics metrics;
+        final DeviceRegistry devices;
+        final JobQueue jobs;
+        final AdmissionControl admission;
+        final ApprovalQueue approvals;
+        private final IdempotencyCache idempotency;
+        private final StreamTickets streamTickets;
+        private final String printWindow;
+        private final int maxMessage;
+        private final int maxQueued;
+        private final String corsMaxAge;
+        // publishes printer list changes found by the background refresh
+        final PrintServiceMatcher.PrinterListener printerEvents = new PrintServiceMatcher.PrinterListener() {
+            @Override
+            public void printersChanged(String[] printers, String[] added, String[] removed) {
+                JSONObject data = new JSONObject();
+                data.put("printers", new JSONArray(printers));
+                data.put("added", new JSONArray(added));
+                data.put("removed", new JSONArray(removed));
+                events.publish(null, "printers", data);
+            }
+        };
 
-        public HttpHandler(Server cont) {
+        public HttpHandler(Server cont) throws IOException {
             super();
             context = cont;
-            pManager = new PrintManager();
-            
+            events = new EventHub();
+            metrics = new Metrics();
+            devices = new DeviceRegistry(events);
+            jobs = new JobQueue(devices, events, metrics, cont.config);
+            admission = new AdmissionControl(cont.config);
+            approvals = new ApprovalQueue(app.acl, jframe);
+            idempotency = new IdempotencyCache(cont.config);
+            streamTickets = new StreamTickets();
+            printWindow = readResource("printwindow.html");
+            maxMessage = cont.config.getInt("ws.maxmessage", 32 * 1024 * 1024);
+            maxQueued = Math.max(1, cont.config.getInt("ws.queue", 256));
+            corsMaxAge = String.valueOf(cont.config.getInt("cors.maxage", 86400));
         }
 
         @Override
         public void handle(HttpRequest request, HttpResponse response, org.apache.http.protocol.HttpContext context) throws HttpException, IOException {
             String method = request.getRequestLine().getMethod().toUpperCase(Locale.ENGLISH);
+            if (method.equals("OPTIONS")) {
+                preflight(request, response);
+                return;
+            }
             if (!method.equals("GET") && !method.equals("HEAD") && !method.equals("POST")) {
                 throw new MethodNotSupportedException(method + " method not supported");
             }
 
             String target = request.getRequestLine().getUri();
+            String query = "";
+            int q = target.indexOf('?');
+            if (q >= 0) {
+                query = target.substring(q + 1);
+                target = target.substring(0, q);
+            }
             String responseBody = "1";
+            ServerTiming timing = new ServerTiming();
             if (method.equals("GET")) {
+                if (target.equals("/ws") && WebSocket.isUpgrade(request)) {
+                    upgradeWebSocket(request, response, context);
+                    return;
+                }
+                if (target.equals("/metrics")) {
+                    StringEntity metricsEntity = new StringEntity(metrics.scrape(Server.this.workers, jobs, events), "UTF-8");
+                    metricsEntity.setContentType("text/plain; version=0.0.4; charset=utf-8");
+                    response.setEntity(metricsEntity);
+                    return;
+                }
+                if (target.equals("/events")) {
+                    // Server-sent events, EventSource cannot send headers so the origin and an eventticket are in the query string
+                    JSONObject jrequest = parseQuery(query);
+                    applyBrowserOrigin(request, jrequest);
+                    response.addHeader("Access-Control-Allow-Origin", "*");
+                    // checked first, so a turned away stream keeps its ticket
+                    if (!hasStreamCapacity(response, 1)) {
+                        return;
+                    }
+                    StreamTickets.Ticket ticket = streamTickets.redeem(jrequest.optString("ticket"), jrequest.optString("origin"));
+                    if (ticket == null) {
+                        response.setStatusCode(HttpStatus.SC_FORBIDDEN);
+                        return;
+                    }
+                    response.addHeader("Cache-Control", "no-cache");
+                    response.setEntity(new EventStream(events, app.acl, ticket.origin, ticket.cookie, config));
+                    return;
+                }
+                if (target.equals("/certificate") && tls != null) {
+                    // lets the user install the HTTPS certificate as trusted
+                    ByteArrayEntity certificate;
+                    try {
+                        certificate = new ByteArrayEntity(tls.getCertificate().getEncoded());
+                    } catch (CertificateEncodingException ex) {
+                        throw new IOException(ex);
+                    }
+                    certificate.setContentType("application/x-x509-ca-cert");
+                    response.addHeader("Content-Disposition", "attachment; filename=webprint.crt");
+                    response.setEntity(certificate);
+                    return;
+                }
                 if (target.equals("/printwindow")) {
-                    responseBody = "<html><head><meta http-equiv=\"Content-Type\" content=\"text/html; charset=utf-8\"/><meta name=\"viewport\" content=\"width=device-width, initial-scale=1.0\"/><style>h1, h2 { color:#0078ae; font-family:helvetica; font-size:110%; }</style>"
-                            + "<script>window.addEventListener('message',sendData); window.blur(); function sendData(event){ var data = JSON.parse(event.data); data.origin = event.origin; data = JSON.stringify(data); var xmlhttp=new XMLHttpRequest(); try { xmlhttp.open('POST','/',false); xmlhttp.send(data); if (xmlhttp.status!=200){ window.opener.postMessage({a:'error'}, '*'); return; } var response = xmlhttp.responseText; if (response!=1){ event.source.postMessage({a:'response', json:response}, '*'); } }catch(err){ window.opener.postMessage({a:'error'}, '*'); }  } window.opener.postMessage({a:'init'}, '*');</script></head>";
-                    responseBody += "<body style='text-align:center;'><h1 style='margin-top:50px;'>Connected to the Print Service</h1><h2>You can minimize this window, but leave it open for faster printing</h2><img style=\"margin-top:20px; width:50px;\" id=\"wscan-loader\" src=\"data:image/gif;base64,R0lGODlhJAAMAIQAAAQCBBRCZCRmlAwiNCR2rAwaJBxSfBQ6VAQKDAwqRCx+vBxOdCRupCx2tAQGBBxGbAwmNBxajCx6tBRGZCRmnAweLBQ+ZAQOFAwuRCRyrAQGDAwmPCRejCx6vAAAAAAAACH/C05FVFNDQVBFMi4wAwEAAAAh+QQJCQAeACwAAAAAJAAMAAAF26BANFgxZtrUEAvArMOwMpqxWk62VslKZQrFYRNUIAzBiIYQTCSCHU0kuEB0gptDsNEIHgaK6wXZiTiuCmdYgpgqqlDI4UoAdobFY3IZxDzDCBxUGkVZQQRMQmBiBldmaGoKBG2DYQpZdA1XX3lICkqJCRhQCAJXcFhzkkBCRIxJZ01/ElKVV5iSTHdgQWOOfAp+YR2Ub4RhuCObrgpjsJCzpacIhap1XrzEjZ/AokG0bguEt9aJeL2eStDDxeJQySIEJRl1GgGILQwjMTMOBogWNNAjUCABIgohAAAh+QQJCQAfACwAAAAAJAAMAIQEAgQUQmQkZpQMIjQkdqwUOlQMGiQcUnwMKkQECgwsfrwcTnQkbqQsdrQEBgQcRmwMJjQcWowULkQserQURmQkZpwUPmQMHiwMLkQEDhQkcqwEBgwMJjwkXowserwAAAAF3+AnfgbRaBvVEAvArMOwMtuxWo62XshajR+OYpg4DCMbwhCBGHo2keEi4RlyCsMGcKCoZoyeiKOqQEgmCkKiI004IYUqAUD/cIlGBVJZbg43AlULG0MKV0MEAiYYEF0KX1ViZBh+T1EKg45XchpDBXcKRUdJS2ddCZdThZtpSh4FQl55kkt+aoGYhFWsJlWfhZB6pAqUTlBShF28nQqwjqLCZBKVqG2rca2edx5fXWJ8TF23grqG2L3NQkPBSGThf6nJHryKBBgGGgQoAQQsLv0xZtToZ2FDPgIGEPSrEAIAIfkECQkAHwAsAAAAACQADACEBAIEFEJkJGaUDCI0JHasDBokHFJ8FDpUBAoMDCpELH68HE50JG6kLHa0BAYEHEZsDCY0DB4sHFqMLHq0FEZkJGacDBosFD5kBA4UDC5EJHKsBAYMDCY8JF6MLHq8AAAABdjgJ44j1RALwJzDcDKbcV6OdkbJWZG8oSiSDeGXSPw8G8lvgfD8OIdfg0fyeSQOp6Ko8EwQSgXzCDk4CTyA+uMDZn8ZYxfRWW5+CugPPbIQCA0OBk5YQ1tyBGB2XXlmCnwiEIwIbUFaCRlHCAJOY0+OkB8DeJQ/hURyE0mLTlBnJJJOGFaWcEYTHopid12ujwEGBhGjP7OEDoZcCl+cYgh4voA/BxyTlRtacUeru4zRGl0HxB6zpsioP6p13b2gAn8ZfgQaGxR/KQyALS+CfxcbGv5YSPCnQggAIfkECQkAHwAsAAAAACQADACEBAIEFEJkDCI0JGaUJHasBBIcFDpUHFJ8DCpEBAoMLH68JG6kLHa0BAYEHE50DCY0DBokHFqMFC5ELHq0HEZsJGacFD5kDC5EBA4UJHKsBAYMDCY8DB4sJF6MLHq8AAAABdfgJ47kCCwMIQjpoh2p1WQph6RVqYsaoSgIxM+jifwcCc9vY/gxdjqNEiiZKAiJzjExfBiUBIB4JwY0fEDhTzNQOjQ/BfNHGBAYl1KAQHhPL2pERgpvCkpMYBk/BiUHPxENSh4XVYYJg0hxiFc+Howkjh4RPT9BdAlthHCHX1cMSp8jjgqQU6ZrmHCGmwSKCgYFDgcOALOjaJRWRFqEXEutfIsCcQmhtaVqWLmGctCvvxvcGMakaXFsbroevHYEFxB8GRp7DMQLdyt3C8V8FhoZfCAg4FMhBAAh+QQJCQAfACwAAAAAJAAMAIQEAgQUQmQMIjQkZpQkdqwMGiQUMkwcUnwECgwMKkQsfrwkbqQsdrQEBgQcTnQMJjQMHiwUOlQcWowserQcRmwkZpwMGiwEDhQMLkQkcqwEBgwMJjwUPmQkXowserwAAAAF1uBAMNhnnigqMMSiHSzXZCyUsFWmKFHqn4mdRyPZORCe3SayYzB2vZ8v6Jkgioqj8BFJEnSeHmDsGwM+QYUH0TFqdorljkCAWugMDQqwGAnSBFduanFdCiNJEQKECCgadQoJaQoaA0laSoZfUBtwjScaSQoYgIJZb0lLXnVhi0kXjpCSQqYOb2qqhwyJnTsIGAcHGKE7CRg7E5WXCHC5mzyuChcHOxKPxUETlFi2hM6Qip7UCtZwpMi1tx7OIgQYd18aFCMOfH4QLC4HdBwaGXQWEtCpEAIAIfkECQkAHwAsAAAAACQADACEBAIEFEJkJGaUDCI0JHasBBYkHFJ8FDpUBAoMDCpELH68HEpsJG6kLHa0BAYEDCY0DB4sHFqMLHq0HEZsJGacDBokFD5kBA4UDC5EHE50JHKsBAYMDCY8JF6MLHq8AAAABd6gQDRYNWrbp64sazSE5WgwlMCUpigHtyuIlnAV2WUQnh3nsGs0doeBInkZDgXJ487zOCQJOk/vFwSYhWbAp6hYIJVMBYEAlVID80xroCEwHGxacF8NSVFkBjsRLQlbG1gKGRtTCktfOjw+VIkeiywYlBuBCFuWcnRiUjsXBkmeK40KEggdO25JlV5yhZmUCIkKEQALBgYVjR4eG7WRpINymIdTrIoOSR4JsQQIkJKUpnNQPqutwRt0ChixCqJGk1PgIgQYBXMoeAQZAAxzAxAwfwzMsbChD4ECGOZQCAEAIfkECQkAHwAsAAAAACQADACEBAIEFEJkJGaUDCI0JHasBBYcHFJ8FDpUBAoMHEp0DCpELH68JG6kLHa0BAYEHEZsDCY0DB4sHFqMLHq0FEZkJGacDBokBA4UHE50DC5EJHKsBAYMDCY8JF6MLHq8AAAABdegQDSZNWob1RDY574wvDFrpKyVtiwHty8Iw04SK74QOw/nsGs0dofBwrO4CD1EYxFBXSypBJ2n9wsOP4B0MQ34IHeQA5gAlVKtVAmAMRrEDCMBG1NecgsjVFFlQgsSDhM7CjESOwlvSoZhUD53jBIbdAuSMB07GFxwmXRjUjt4jQ5doy8CVKc/X4cNiZxVnqA7GQUGBgkAlAuWVJhgOjytHkF5G7IKUxMbpQu3qXObP1ZDDqEK1lMIyMpTuQQiBCUaYRsBBCx7fQMrDA6ABILxBCwoqFchBAAh+QQJCQAeACwAAAAAJAAMAIQEAgQUQmQkZpQMIjQkdqwMGiQcUnwUNlQECgwMKkQsfrwcTnQkbqQsdrQEBgQcRmwMJjQcWowserQURmQkZpwMHiwUOlQEDhQMLkQkcqwEBgwMJjwkXowserwAAAAAAAAF2aBANFgxZtrUEAvArIMnzzSNrVSmKNa2KwjDLqIh7DC15OywazR2loGio7gIOxEHVZFQKi07gq7T+wWHxaMHwE6yAR5mh2DkSalWanabGGQIDBo0AH8NBWAKI1RRZkIKRHUJCTsdgjMIUwobcmJQPniOe0eTVJYymDubYUZkUjt5j2lckwoSph4IVB0QiIo8n1WhWqOZGgcGBgmompw6dpRBerKSO7YcOwu5Uxu9dWWvoRpbGJMSChrXCgsaPxCcIgQlfygBdC0MIwMVTgwOBnQBCNEpgIEOhRAAIfkECQkAHgAsAAAAACQADACEBAIEFEJkJGaUDCI0JHasBBIcHFJ8FDpUBAoMDCpELH68HE50JG6kLHa0BAYEHEZsDCY0DBokHFqMLHq0FEZkJGacBA4UDC5EJHKsBAYMDCY8DB4sJF6MLHq8AAAAAAAABdagQDRXNGIZ1RALwKzDsDKZZ9/4jSnKofEKhIEnyRB4iQSvU8s5PQ3eYaDoKCzDjsRhVSSriuYTt+v4gEKikXdRKggIgPwpBxx7VCvWuu1+eRkGIwE5CQQEFQ1WU2hDCkV3CRcKE0wSPAs5B1YEOz0/eo59SG4TCByYmlYrVYw8e49rCm1LGagKmTibb4qfYFhEXKQ8ppe4AAsGCwW7nVJUVUJ8spKUHQgCVgsZQBrNd2evohl+bpaYCFYd3pwiBCUYnRkBhy0MIzEzDoIEAQDxBCIYQhQCACH5BAkJAB4ALAAAAAAkAAwAAAXdoEA0WDFm2tQQC8Csw7AymrFaXq7rmaIcG58CYfBFNARfIuHraCK+xW7a8B0Gio7iUuxEHFrFMitBQBXSKS8LFBKNSB+GmUVwoh6Afpr8YbVcWl9hYwoEZlEODCMVOw1aV25FCkd9CRhNCAJaCwhCGzs9P0GAk4NKdBJPURpZCqA6SR2RPoGUcQpzWR2IaK0+sDmPo65cRmCoPmWbaJ5aGxUGBgGitLwGgriXyqu+nwdaBH1ttaYahEwdvGedrhsHPgQiBCUZBCgB4i2LDTEzDgbEWdBgj0CBBOIohAAAIfkECQkAHgAsAAAAACQADAAABd+gQDRYMWba1BALwKzDsDKasVpOtlZe72UKxWETVCAMwYiGEEwkgh1NJLhAdIIbn6cRPAwU1wuyE3FcFU6wBDFVVKFZH7AzLB6TyyDmCUZwqBpFWQCETEJfYQZXZWdpCgRsgGAKGxgEBBQNV152SApKhgkYUAgCV29YB1cNQEJEiUlmTXwSUpJXGwdBl2CcQWKLeQp7YB2RboGpVyObrwpisY20pacIk7nLrb7Gip/CokG1bQvJHdiPhnW/nkrSxceolKqPIgQlGQQoAZctDCMxMxwYuGRBg78MBRJcohACADs=\"/></body></html>";
+                    responseBody = printWindow;
                 }
                 response.addHeader("Content-Type", "text/html");
             } else if (method.equals("POST")) {
                 JSONObject responseJson = new JSONObject();
                 if (request instanceof HttpEntityEnclosingRequest) {
-                    // Get request and parse JSON
-                    ByteArrayOutputStream stream = new ByteArrayOutputStream();
-                    ((HttpEntityEnclosingRequest) request).getEntity().writeTo(stream);
-                    String entityContent = stream.toString();
-                    System.out.println(entityContent);
-                    // parse json and get request
-                    JSONObject jrequest = new JSONObject(entityContent);
-                    String action = jrequest.getString("a");
-                    // Perform authentication using provided cookie & origin
-                    if (!jrequest.has("origin")) {
-                        responseJson.put("error", "Invalid authentication credentials provided.");
+                    HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+                    JSONObject jrequest = null;
+                    ByteBuffer payload = null;
+                    try {
+                        admission.checkLength(entity.getContentLength());
+                        if (target.equals("/raw")) {
+                            // Binary upload, the body is the raw data and the other fields are in the query string or headers
+                            jrequest = parseRawRequest(request, query);
+                            applyBrowserOrigin(request, jrequest);
+                            // checked before the body is read, so a rejected upload is never buffered
+                            checkRate(jrequest, getBrowserOrigin(request));
+                            payload = RequestParser.readBody(entity.getContent(), entity.getContentLength());
+                            timing.mark("parse");
+                        } else {
+                            // Parse the JSON request straight from the body, decoding any raw data as it is read
+                            RequestParser parser = new RequestParser(entity.getContent(), entity.getContentLength());
+                            jrequest = parser.parse();
+                            applyBrowserOrigin(request, jrequest);
+                            checkRate(jrequest, getBrowserOrigin(request));
+                            payload = parser.getPayload();
+                            timing.mark("parse");
+                        }
+                    } catch (JSONException ex) {
+                        responseJson.put("error", "Invalid request: " + ex.getMessage());
+                    } catch (AdmissionControl.Rejected ex) {
+                        jrequest = null;
+                        responseJson = reject(response, ex);
+                    }
+                    if (jrequest == null) {
+                        System.out.println("Invalid request");
                     } else {
-                        String origin = jrequest.getString("origin");
-                        String cookie = "";
-                        if (jrequest.has("cookie")) {
-                            cookie = jrequest.getString("cookie");
+                        responseJson = process(jrequest, payload, timing);
+                        if (responseJson.has("retryAfter")) {
+                            // a print job was turned away by the job limits
+                            response.setStatusCode(HttpStatus.SC_SERVICE_UNAVAILABLE);
+                            response.addHeader("Retry-After", String.valueOf(responseJson.getInt("retryAfter")));
                         }
-                        if (action.equals("init")) {
-                            if (!app.acl.isAllowed(origin, cookie)) {
-                                System.out.println("Authentication needed...");
-                                // Not authenticated, show dialog
-                                int dialogButton = JOptionPane.YES_NO_OPTION;
-                                int dialogResult = JOptionPane.showConfirmDialog(jframe, origin + " is trying to access your printers and serial ports.\nWould you like to allow?\nOnly click yes for sites you trust.", "Warning", dialogButton);
-                                jframe.requestFocus();
-                                if (dialogResult == JOptionPane.YES_OPTION) {
-                                    // add to acl and return cookie
-                                    String ncookie = (UUID.randomUUID()).toString();
-                                    app.acl.add(origin, ncookie);
-                                    responseJson.put("cookie", ncookie);
-                                    responseJson.put("ready", true);
-                                } else {
-                                    responseJson.put("error", "Printer access has been denied for this site.");
-                                }
+                    }
+                }
+                responseBody = responseJson.toString();
+                System.out.println(responseBody);
+            }
+
+            response.addHeader("Access-Control-Allow-Origin", "*");
+            // lets pages read the timing from fetch and the resource timing API
+            response.addHeader("Server-Timing", timing.toString());
+            response.addHeader("Access-Control-Expose-Headers", "Server-Timing");
+            response.addHeader("Timing-Allow-Origin", "*");
+            StringEntity en = new StringEntity(responseBody);
+
+            response.setEntity(en);
+
+        }
+
+        /**
+         * Answers a CORS preflight, so pages can post JSON or binary uploads
+         * with headers straight to the server. The answer does not depend on
+         * the request, so browsers may cache it for cors.maxage seconds. Pages
+         * on public sites also need the private network permission to reach a
+         * local address.
+         */
+        private void preflight(HttpRequest request, HttpResponse response) {
+            response.setStatusCode(HttpStatus.SC_NO_CONTENT);
+            response.addHeader("Access-Control-Allow-Origin", "*");
+            response.addHeader("Access-Control-Allow-Methods", "POST, GET, OPTIONS");
+            response.addHeader("Access-Control-Allow-Headers", CORS_HEADERS);
+            response.addHeader("Access-Control-Max-Age", corsMaxAge);
+            Header privateNetwork = request.getFirstHeader("Access-Control-Request-Private-Network");
+            if (privateNetwork != null && privateNetwork.getValue().equalsIgnoreCase("true")) {
+                response.addHeader("Access-Control-Allow-Private-Network", "true");
+            }
+        }
+
+        /**
+         * Sets the status and Retry-After header for a rejected request. The
+         * connection is closed as the body may not have been read.
+         *
+         * @return the error response
+         */
+        private JSONObject reject(HttpResponse response, AdmissionControl.Rejected ex) {
+            System.out.println("Rejected request: " + ex.getMessage());
+            response.setStatusCode(ex.status);
+            if (ex.status == 429) {
+                response.setReasonPhrase("Too Many Requests");
+            }
+            if (ex.retryAfter > 0) {
+                response.addHeader("Retry-After", String.valueOf(ex.retryAfter));
+            }
+            response.addHeader("Connection", "close");
+            return ex.toJSON();
+        }
+
+        /**
+         * Completes a websocket handshake, the connection is handed to a
+         * WebSocketSession once the response has been sent
+         */
+        private void upgradeWebSocket(HttpRequest request, HttpResponse response, org.apache.http.protocol.HttpContext context) {
+            Header key = request.getFirstHeader("Sec-WebSocket-Key");
+            Header version = request.getFirstHeader("Sec-WebSocket-Version");
+            if (key == null) {
+                response.setStatusCode(HttpStatus.SC_BAD_REQUEST);
+                return;
+            }
+            if (version == null || !version.getValue().trim().equals("13")) {
+                response.setStatusCode(426);
+                response.addHeader("Sec-WebSocket-Version", "13");
+                return;
+            }
+            // one thread reads the connection and another writes to it
+            if (!hasStreamCapacity(response, 2)) {
+                return;
+            }
+            response.setStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_SWITCHING_PROTOCOLS, "Switching Protocols");
+            response.addHeader("Upgrade", "websocket");
+            response.addHeader("Connection", "Upgrade");
+            response.addHeader("Sec-WebSocket-Accept", WebSocket.acceptKey(key.getValue()));
+            // the handshake's origin holds for every message sent on the connection
+            context.setAttribute(UPGRADE_ATTRIBUTE, new WebSocketSession(this, Server.this.workers, maxMessage, maxQueued, getBrowserOrigin(request)));
+        }
+
+        /**
+         * Turns away a websocket or event stream with a 503 response when
+         * streams.max stream threads are already in use
+         *
+         * @param response
+         * @param needed stream threads the connection will use
+         * @return false if the stream was turned away
+         */
+        private boolean hasStreamCapacity(HttpResponse response, int needed) {
+            WorkerPool pool = Server.this.workers;
+            if (pool == null || pool.hasStreamCapacity(needed)) {
+                return true;
+            }
+            System.err.println("Stream limit reached, rejecting stream");
+            response.setStatusCode(HttpStatus.SC_SERVICE_UNAVAILABLE);
+            response.addHeader("Retry-After", "1");
+            return false;
+        }
+
+        /**
+         * Authenticates and runs a JSON request
+         *
+         * @param jrequest
+         * @param payload raw data already read from the request, or null
+         * @param timing marks the phases of the request, and receives the
+         * phases of the print jobs it waited for
+         * @return the response
+         */
+        JSONObject process(JSONObject jrequest, ByteBuffer payload, ServerTiming timing) {
+            long start = System.nanoTime();
+            JSONObject responseJson = new JSONObject();
+            String action = jrequest.optString("a");
+            // Perform authentication using provided cookie & origin
+            if (!jrequest.has("origin")) {
+                responseJson.put("error", "Invalid authentication credentials provided.");
+            } else {
+                String origin = jrequest.getString("origin");
+                String cookie = "";
+                if (jrequest.has("cookie")) {
+                    cookie = jrequest.getString("cookie");
+                }
+                if (action.equals("init")) {
+                    if (!app.acl.isAllowed(origin, cookie)) {
+                        // Not authenticated, the user is asked without holding up the request
+                        ApprovalQueue.Approval approval = null;
+                        if (jrequest.has("ticket")) {
+                            approval = approvals.get(origin, jrequest.getString("ticket"));
+                        }
+                        if (approval == null) {
+                            approval = approvals.request(origin);
+                        }
+                        responseJson = approval.toJSON();
+                    } else {
+                        // tokens are replaced well before they expire
+                        String renewed = app.acl.renew(origin, cookie);
+                        if (renewed != null) {
+                            responseJson.put("cookie", renewed);
+                        }
+                        responseJson.put("ready", true);
+                        // tells webprint.js it can send raw data to /raw as binary
+                        responseJson.put("raw", true);
+                    }
+                    timing.mark("acl");
+                } else {
+                    if (app.acl.isAllowed(origin, cookie)) {
+                        timing.mark("acl");
+                        boolean printing = action.equals("printraw") || action.equals("printhtml") || action.equals("batch");
+                        if (action.equals("listprinters")) {
+                            // answered from the printer list kept up to date in the background
+                            String[] printers = PrintServiceMatcher.getPrinterNames();
+                            responseJson.put("printers", new JSONArray(printers));
+                            responseJson.put("status", jobs.getHealth().getPrinterStatus(printers));
+                        }
+                        if (action.equals("printerinfo")) {
+                            PrintService service = PrintServiceMatcher.findPrinter(jrequest.optString("printer"));
+                            if (service == null) {
+                                responseJson.put("error", "Printer " + jrequest.optString("printer") + " not found.");
                             } else {
-                                responseJson.put("ready", true);
+                                responseJson.put("printerinfo", PrintServiceMatcher.getCapabilities(service).toJSON());
                             }
-                        } else {
-                            if (app.acl.isAllowed(origin, cookie)) {
-                                if (action.equals("listprinters")) {
-                                    PrintServiceMatcher.getPrinterArray(true);
-                                    String[] printerArray = PrintServiceMatcher.getPrinterListing().split(",");
-                                    JSONArray jprintArray = new JSONArray(printerArray);
-                                    responseJson.put("printers", jprintArray);
-                                }
-                                if (action.equals("listports")) {
-                                    String[] portArray = pManager.findPorts();
-                                    JSONArray jportArray = new JSONArray(portArray);
-                                    responseJson.put("ports", jportArray);
-                                }
-                                if (action.equals("openport")) {
-                                    if (!pManager.openPortWithProperties(jrequest.getString("port"), jrequest.getJSONObject("settings"))) {
-                                        responseJson.put("error", "Could not open serial port: " + pManager.getException());
-                                    }
-                                }
-                                if (action.equals("printraw")) {
-                                    if (jrequest.has("printer")) {
-                                        pManager.append64(jrequest.getString("data"));
-                                        if (!pManager.printRaw(jrequest.getString("printer"))) {
-                                            responseJson.put("error", "Failed to print: " + pManager.getException());
-                                        }
-                                    } else if (jrequest.has("port")) {
-                                        if (!pManager.send(jrequest.getString("port"), jrequest.getString("data"))) {
-                                            //System.out.println(jrequest.getString("port"));
-                                            responseJson.put("error", "Failed to print: " + pManager.getException());
-                                        }
-                                    } else if (jrequest.has("socket")) {
-                                        pManager.append64(jrequest.getString("data"));
-                                        String[] parts = jrequest.getString("socket").split(":");
-                                        try {
-                                            pManager.printToHost(parts[0], parts[1]);
-                                        } catch (NumberFormatException | IOException | NullPrintServiceException ex) {
-                                            Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
-                                                //System.out.println(jrequest.getString("socket"));
-                                            responseJson.put("error", "Failed to print: " + ex.getMessage());
-                                        }    
-                                    } else {
-                                        responseJson.put("error", "No printer specified in the request.");
+                        }
+                        if (action.equals("eventticket")) {
+                            // opens one event stream, so the token is never put in a URL
+                            String ticket = streamTickets.issue(origin, cookie);
+                            if (ticket == null) {
+                                responseJson.put("error", "Too many event streams are being opened, try again shortly.");
+                            } else {
+                                responseJson.put("eventticket", ticket);
+                            }
+                        }
+                        if (action.equals("listports")) {
+                            String[] portArray = devices.findPorts();
+                            JSONArray jportArray = new JSONArray(portArray);
+                            responseJson.put("ports", jportArray);
+                        }
+                        if (action.equals("openport")) {
+                            try {
+                                devices.openPort(jrequest.getString("port"), jrequest.getJSONObject("settings"), origin);
+                            } catch (PrintJob.JobException ex) {
+                                responseJson.put("error", ex.getMessage());
+                            }
+                        }
+                        if (printing) {
+                            responseJson = print(jrequest, payload, origin, timing);
+                        }
+                        if (action.equals("jobstatus")) {
+                            JobQueue.Job job = jobs.get(jrequest.getString("job"));
+                            if (job == null || !origin.equals(job.printJob.getOrigin())) {
+                                responseJson.put("error", "Unknown print job.");
+                            } else {
+                                long wait = Math.min(jrequest.optLong("wait"), MAX_STATUS_WAIT);
+                                if (wait > 0) {
+                                    try {
+                                        job.await(wait);
+                                    } catch (InterruptedException ex) {
+                                        Logger.getLogger(Server.class.getName()).log(Level.WARNING, null, ex);
                                     }
                                 }
-                                if (action.equals("printhtml")) {
-                                    pManager.appendHTML(jrequest.getString("data"));
-                                    if (!pManager.printHTML(jrequest.getString("printer"))) {
-                                        responseJson.put("error", "Failed to print: " + pManager.getException());
-                                    }
+                                responseJson = job.toJSON();
+                                if (job.isFinished()) {
+                                    timing.merge(job.timing);
                                 }
-                                System.out.println(action);
-                            } else {
-                                responseJson.put("error", origin+" has not been allowed access to web print yet.\nTry refreshing the page.");
                             }
                         }
+                        if (!printing) {
+                            timing.mark(action);
+                        }
+                        System.out.println(action);
+                    } else {
+                        responseJson.put("error", origin+" has not been allowed access to web print yet.\nTry refreshing the page.");
                     }
                 }
-                responseBody = responseJson.toString();
-                System.out.println(responseBody);
             }
+            metrics.requestHandled(action, System.nanoTime() - start, responseJson.has("error"));
+            return responseJson;
+        }
 
-            response.addHeader("Access-Control-Allow-Origin", "*");
-            response.addHeader("Access-Control-Allow-Methods", "POST, GET, OPTIONS, DELETE");
-            response.addHeader("Access-Control-Max-Age", "3600");
-            response.addHeader("Access-Control-Allow-Headers", "x-requested-with");
-            StringEntity en = new StringEntity(responseBody);
+        /**
+         * @param jrequest
+         * @return true if the request carries a valid origin and cookie
+         */
+        boolean isAuthenticated(JSONObject jrequest) {
+            return jrequest.has("origin") && isAllowed(jrequest.getString("origin"), jrequest.optString("cookie"));
+        }
 
-            response.setEntity(en);
+        /**
+         * @param origin
+         * @param cookie
+         * @return true if the origin is still allowed with the cookie, checked
+         * again by connections that stay open
+         */
+        boolean isAllowed(String origin, String cookie) {
+            return app.acl.isAllowed(origin, cookie);
+        }
+
+        /**
+         * Takes a request from its origin's rate limit. The origin is the
+         * one the browser gave in the Origin header, or for the relay window
+         * the origin the request authenticated as, never just the origin a
+         * request claims, so a page cannot use up another origin's requests.
+         * init and jobstatus requests are not limited, so signing in and
+         * polling jobs keep working.
+         *
+         * @param jrequest
+         * @param browserOrigin the Origin header set by the browser, or null
+         * @throws AdmissionControl.Rejected if the origin is sending too many
+         * requests
+         */
+        void checkRate(JSONObject jrequest, String browserOrigin) throws AdmissionControl.Rejected {
+            String action = jrequest.optString("a");
+            if (action.equals("init") || action.equals("jobstatus")) {
+                return;
+            }
+            if (browserOrigin != null) {
+                admission.checkRate(browserOrigin);
+            } else if (isAuthenticated(jrequest)) {
+                admission.checkRate(jrequest.getString("origin"));
+            }
+        }
+
+        /**
+         * Pages on other origins can post to the server directly over HTTPS,
+         * so the Origin header set by the browser replaces the origin claimed
+         * in the request. Requests from the relay window, which is served by
+         * this server, keep the origin the relay passed on.
+         *
+         * @param request
+         * @param jrequest the parsed request fields
+         */
+        private void applyBrowserOrigin(HttpRequest request, JSONObject jrequest) {
+            String origin = getBrowserOrigin(request);
+            if (origin != null) {
+                jrequest.put("origin", origin);
+            }
+        }
+
+        /**
+         * @param request
+         * @return the Origin header set by the browser, or null if there is
+         * none or the request comes from the relay window
+         */
+        String getBrowserOrigin(HttpRequest request) {
+            Header origin = request.getFirstHeader("Origin");
+            Header host = request.getFirstHeader("Host");
+            if (origin == null || origin.getValue().equals("null")) {
+                return null;
+            }
+            String value = origin.getValue();
+            if (host != null && (value.equals("http://" + host.getValue()) || value.equals("https://" + host.getValue()))) {
+                return null;
+            }
+            return value;
+        }
 
-            response.setStatusCode(200);
+        /**
+         * Reads the fields of a binary upload. Each field can be given in the
+         * query string or as an X-WebPrint-* header (X-WebPrint-Action for
+         * "a"), the Origin and Idempotency-Key headers are used if those fields
+         * are not given.
+         *
+         * @param request
+         * @param query the URL query string
+         * @return the request fields, "a" defaults to printraw
+         * @throws IOException
+         */
+        private JSONObject parseRawRequest(HttpRequest request, String query) throws IOException {
+            JSONObject jrequest = parseQuery(query);
+            for (String field : RAW_FIELDS) {
+                Header header = request.getFirstHeader("X-WebPrint-" + (field.equals("a") ? "Action" : field));
+                if (header != null && !jrequest.has(field)) {
+                    jrequest.put(field, header.getValue());
+                }
+            }
+            if (!jrequest.has("idempotencyKey") && request.containsHeader("Idempotency-Key")) {
+                jrequest.put("idempotencyKey", request.getFirstHeader("Idempotency-Key").getValue());
+            }
+            if (!jrequest.has("origin") && request.containsHeader("Origin")) {
+                jrequest.put("origin", request.getFirstHeader("Origin").getValue());
+            }
+            if (!jrequest.has("a")) {
+                jrequest.put("a", "printraw");
+            } else if (!jrequest.getString("a").equals("printraw")) {
+                throw new JSONException("only printraw requests can be sent as binary data");
+            }
+            return jrequest;
+        }
 
+        /**
+         * Runs a printraw, printhtml or batch request. A request with an
+         * idempotencyKey that was already seen from the same origin gets the
+         * jobs of the first request instead of printing again, so a resent
+         * request cannot print twice.
+         *
+         * @param jrequest
+         * @param payload raw data already read from the request, or null
+         * @param origin the already authenticated origin
+         * @param timing
+         * @return the response
+         */
+        private JSONObject print(JSONObject jrequest, ByteBuffer payload, String origin, ServerTiming timing) {
+            String key = jrequest.optString("idempotencyKey");
+            JSONObject queued;
+            if (key.isEmpty()) {
+                queued = queuePrint(jrequest, payload, origin);
+            } else {
+                String scope = origin + " " + key;
+                IdempotencyCache.Entry earlier = idempotency.claim(scope);
+                if (earlier == null) {
+                    queued = null;
+                    try {
+                        queued = queuePrint(jrequest, payload, origin);
+                    } catch (RuntimeException ex) {
+                        // eg. a field of the wrong type, a repeat of the request gets the same error
+                        queued = new JSONObject();
+                        queued.put("error", "Invalid request: " + ex.getMessage());
+                    } finally {
+                        if (queued != null) {
+                            idempotency.complete(scope, queued);
+                        } else {
+                            idempotency.release(scope);
+                        }
+                    }
+                } else {
+                    System.out.println("Repeated print request " + key + ", not printing again");
+                    try {
+                        queued = earlier.await(MAX_STATUS_WAIT);
+                    } catch (InterruptedException ex) {
+                        queued = null;
+                    }
+                    if (queued == null) {
+                        queued = new JSONObject();
+                        queued.put("error", "The original print request is still being queued, try again shortly.");
+                    } else {
+                        refreshStatus(queued);
+                    }
+                }
+            }
+            timing.mark("submit");
+            if (jrequest.optBoolean("async")) {
+                // return straight away, the client can poll jobstatus
+                return queued;
+            }
+            try {
+                return awaitPrint(queued, timing);
+            } catch (InterruptedException ex) {
+                JSONObject responseJson = new JSONObject();
+                responseJson.put("error", "Print request interrupted.");
+                return responseJson;
+            }
+        }
+
+        /**
+         * Queues the jobs of a print request
+         *
+         * @return the queued job, the result of each job in a batch, or an
+         * error
+         */
+        private JSONObject queuePrint(JSONObject jrequest, ByteBuffer payload, String origin) {
+            JSONObject responseJson = new JSONObject();
+            if (jrequest.getString("a").equals("batch")) {
+                responseJson.put("results", printBatch(jrequest.getJSONArray("jobs"), origin));
+                return responseJson;
+            }
+            try {
+                return jobs.submit(PrintJob.fromRequest(jrequest, payload)).toJSON();
+            } catch (AdmissionControl.Rejected ex) {
+                return ex.toJSON();
+            } catch (PrintJob.JobException ex) {
+                responseJson.put("error", ex.getMessage());
+            }
+            return responseJson;
+        }
+
+        /**
+         * Updates the job statuses in a response from queuePrint
+         */
+        private void refreshStatus(JSONObject queued) {
+            if (queued.has("job")) {
+                JobQueue.Job job = jobs.get(queued.getString("job"));
+                if (job != null) {
+                    JSONObject current = job.toJSON();
+                    queued.put("status", current.get("status"));
+                    if (current.has("error")) {
+                        queued.put("error", current.get("error"));
+                    }
+                }
+            }
+            JSONArray results = queued.optJSONArray("results");
+            for (int i = 0; results != null && i < results.length(); i++) {
+                JobQueue.Job job = jobs.get(results.getJSONObject(i).optString("job"));
+                if (job != null) {
+                    results.put(i, job.toJSON());
+                }
+            }
+        }
+
+        /**
+         * Waits for the jobs returned by queuePrint to finish
+         *
+         * @param queued
+         * @param timing receives the phases of the jobs
+         * @return the final result of each job for a batch, otherwise an
+         * empty response or the error of the failed job
+         * @throws InterruptedException
+         */
+        private JSONObject awaitPrint(JSONObject queued, ServerTiming timing) throws InterruptedException {
+            if (queued.has("results")) {
+                JSONArray results = queued.getJSONArray("results");
+                for (int i = 0; i < results.length(); i++) {
+                    JobQueue.Job job = jobs.get(results.getJSONObject(i).optString("job"));
+                    if (job != null) {
+                        job.await(0);
+                        timing.merge(job.timing);
+                        results.put(i, job.toJSON());
+                    }
+                }
+                return queued;
+            }
+            if (!queued.has("job")) {
+                return queued;
+            }
+            JSONObject responseJson = new JSONObject();
+            JobQueue.Job job = jobs.get(queued.getString("job"));
+            if (job == null) {
+                responseJson.put("error", "Unknown print job.");
+            } else {
+                JobQueue.State state = job.await(0);
+                // the outcome, so a successful print has a response to carry the timing
+                responseJson.put("status", state.toString());
+                if (state == JobQueue.State.FAILED) {
+                    responseJson.put("error", job.getError());
+                }
+                timing.merge(job.timing);
+            }
+            return responseJson;
+        }
+
+        /**
+         * Queues a list of print jobs from one authenticated request. Each
+         * printer is looked up once for the whole batch; jobs keep their order
+         * per target and different targets print in parallel.
+         *
+         * @param jjobs printraw/printhtml requests without credentials
+         * @param origin the already authenticated origin
+         * @return the queued job or the error for each job, in request order
+         */
+        private JSONArray printBatch(JSONArray jjobs, String origin) {
+            HashMap<String, PrintService> printers = new HashMap<>();
+            JobQueue.Job[] queued = new JobQueue.Job[jjobs.length()];
+            JSONObject[] results = new JSONObject[jjobs.length()];
+            for (int i = 0; i < jjobs.length(); i++) {
+                JSONObject jjob = jjobs.getJSONObject(i);
+                jjob.put("origin", origin);
+                if (!jjob.has("a")) {
+                    jjob.put("a", "printraw");
+                }
+                try {
+                    PrintJob job = PrintJob.fromRequest(jjob);
+                    // IPP printers are not looked up through javax.print
+                    if (job.isPrinterJob() && jobs.getIppPrinter(job) == null) {
+                        if (!printers.containsKey(job.getTarget())) {
+                            printers.put(job.getTarget(), PrintServiceMatcher.findPrinter(job.getTarget()));
+                        }
+                        PrintService service = printers.get(job.getTarget());
+                        if (service == null) {
+                            throw new PrintJob.JobException("Failed to print: printer " + job.getTarget() + " not found");
+                        }
+                        job = job.withPrintService(service);
+                    }
+                    queued[i] = jobs.submit(job);
+                } catch (PrintJob.JobException | JSONException ex) {
+                    results[i] = new JSONObject();
+                    results[i].put("status", JobQueue.State.FAILED.toString());
+                    results[i].put("error", ex.getMessage());
+                    if (ex instanceof AdmissionControl.Rejected && ((AdmissionControl.Rejected) ex).retryAfter > 0) {
+                        results[i].put("retryAfter", ((AdmissionControl.Rejected) ex).retryAfter);
+                    }
+                }
+            }
+            JSONArray jresults = new JSONArray();
+            for (int i = 0; i < queued.length; i++) {
+                if (queued[i] != null) {
+                    results[i] = queued[i].toJSON();
+                }
+                jresults.put(results[i]);
+            }
+            return jresults;
         }
 
     }
 
-    class RequestListenerThread extends Thread {
+    class RequestListenerThread extends Thread implements Listener {
 
         public ServerSocket serversocket;
         private final HttpParams params;
         private final HttpService httpService;
+        private final WorkerPool workers;
 
         public RequestListenerThread(String address, int port, Server cont) throws IOException {
-            this.serversocket = new ServerSocket(port, 50, InetAddress.getByName(address));
+            this(new ServerSocket(port, cont.config.getInt("server.backlog", 50), InetAddress.getByName(address)), cont);
+        }
+
+        public RequestListenerThread(ServerSocket serversocket, Server cont) {
+            this.serversocket = serversocket;
+            this.workers = cont.workers;
             this.params = new SyncBasicHttpParams();
             this.params
-                    .setIntParameter(CoreConnectionPNames.SO_TIMEOUT, 5000)
+                    .setIntParameter(CoreConnectionPNames.SO_TIMEOUT, cont.config.getInt("server.keepalive", 5000))
                     .setIntParameter(CoreConnectionPNames.SOCKET_BUFFER_SIZE, 8 * 1024)
                     .setBooleanParameter(CoreConnectionPNames.STALE_CONNECTION_CHECK, false)
                     .setBooleanParameter(CoreConnectionPNames.TCP_NODELAY, true)
                     .setParameter(CoreProtocolPNames.ORIGIN_SERVER, "HttpComponents/1.1");
 
-            // Set up the HTTP protocol processor
-            HttpProcessor httpproc = new ImmutableHttpProcessor(new HttpResponseInterceptor[]{
-                new ResponseDate(),
-                new ResponseServer(),
-                new ResponseContent(),
-                new ResponseConnControl()
-            });
-
             // Set up request handlers
             HttpRequestHandlerRegistry reqistry = new HttpRequestHandlerRegistry();
-            reqistry.register("*", new HttpHandler(cont));
+            reqistry.register("*", cont.handler);
 
             // Set up the HTTP service
             this.httpService = new HttpService(
-                    httpproc,
+                    cont.httpproc,
                     new DefaultConnectionReuseStrategy(),
                     new DefaultHttpResponseFactory(),
                     reqistry,
                     this.params);
         }
 
+        @Override
+        public void startListening() {
+            setDaemon(false);
+            start();
+        }
+
+        @Override
+        public void stopAccepting() throws IOException {
+            this.serversocket.close();
+            this.interrupt();
+            try {
+                this.join();
+            } catch (InterruptedException ex) {
+                Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+
+        @Override
+        public void shutdown(long deadline) throws IOException {
+            // open connections belong to the worker pool, which finishes them
+            stopAccepting();
+        }
+
         @Override
         public void run() {
             System.out.println("Listening on " + this.serversocket.getLocalSocketAddress());
@@ -354,14 +1172,21 @@ class Server {
                 try {
                     // Set up HTTP connection
                     Socket socket = this.serversocket.accept();
-                    DefaultHttpServerConnection conn = new DefaultHttpServerConnection();
                     System.out.println("Incoming connection from " + socket.getInetAddress());
+                    if (!workers.acquireConnection()) {
+                        System.err.println("Connection limit reached, rejecting " + socket.getInetAddress());
+                        reject(socket);
+                        continue;
+                    }
+                    UpgradableConnection conn = new UpgradableConnection();
                     conn.bind(socket, this.params);
 
-                    // Start worker thread
-                    Thread t = new WorkerThread(this.httpService, conn);
-                    t.setDaemon(true);
-                    t.start();
+                    // Hand off to a worker, never waiting for a free thread here
+                    if (!workers.execute(new Worker(this.httpService, conn, workers))) {
+                        System.err.println("Worker queue full, rejecting " + socket.getInetAddress());
+                        workers.releaseConnection();
+                        reject(socket);
+                    }
                 } catch (InterruptedIOException ex) {
                     break;
                 } catch (IOException e) {
@@ -371,28 +1196,108 @@ class Server {
                 }
             }
         }
+
+        private void reject(Socket socket) {
+            try {
+                socket.getOutputStream().write(REJECT_RESPONSE);
+                socket.close();
+            } catch (IOException ignore) {
+            }
+        }
     }
 
-    static class WorkerThread extends Thread {
+    static final byte[] REJECT_RESPONSE = ("HTTP/1.1 503 Service Unavailable\r\n"
+            + "Retry-After: 1\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(Charset.forName("US-ASCII"));
+
+    /**
+     * Connection that can hand its socket over to another protocol. A
+     * response body of unknown length, such as an event stream, is not
+     * written with the response but left for the stream thread the
+     * connection is handed to.
+     */
+    static class UpgradableConnection extends DefaultHttpServerConnection {
+
+        private HttpResponse deferred;
+
+        Socket getUpgradeSocket() {
+            return getSocket();
+        }
+
+        @Override
+        public void sendResponseEntity(HttpResponse response) throws HttpException, IOException {
+            HttpEntity entity = response.getEntity();
+            if (entity != null && entity.isStreaming() && entity.getContentLength() < 0) {
+                deferred = response;
+                return;
+            }
+            super.sendResponseEntity(response);
+        }
+
+        @Override
+        public void close() throws IOException {
+            // a deferred body still has to be written, the connection is shut down after that
+            if (deferred == null) {
+                super.close();
+            }
+        }
+
+        /**
+         * @return writes the deferred response body, or null if there is none
+         */
+        ConnectionUpgrade takeDeferredBody() {
+            final HttpResponse response = deferred;
+            if (response == null) {
+                return null;
+            }
+            return new ConnectionUpgrade() {
+                @Override
+                public void run(InputStream in, OutputStream out) throws IOException {
+                    try {
+                        UpgradableConnection.super.sendResponseEntity(response);
+                        flush();
+                    } catch (HttpException ex) {
+                        throw new IOException(ex);
+                    }
+                }
+            };
+        }
+    }
+
+    static class Worker implements Runnable {
 
         private final HttpService httpservice;
-        private final HttpServerConnection conn;
+        private final UpgradableConnection conn;
+        private final WorkerPool workers;
 
-        public WorkerThread(
+        public Worker(
                 final HttpService httpservice,
-                final HttpServerConnection conn) {
+                final UpgradableConnection conn,
+                final WorkerPool workers) {
             super();
             this.httpservice = httpservice;
             this.conn = conn;
+            this.workers = workers;
         }
 
         @Override
         public void run() {
-            System.out.println("New connection thread");
+            System.out.println("New connection on " + Thread.currentThread().getName());
             BasicHttpContext context = new BasicHttpContext(null);
+            boolean handedOver = false;
             try {
                 while (!Thread.interrupted() && this.conn.isOpen()) {
                     this.httpservice.handleRequest(this.conn, context);
+                    ConnectionUpgrade upgrade = (ConnectionUpgrade) context.removeAttribute(UPGRADE_ATTRIBUTE);
+                    if (upgrade == null) {
+                        upgrade = this.conn.takeDeferredBody();
+                    }
+                    if (upgrade != null) {
+                        handedOver = handOver(upgrade);
+                        if (!handedOver) {
+                            System.err.println("Stream limit reached, closing upgraded connection");
+                        }
+                        break;
+                    }
                 }
             } catch (ConnectionClosedException ex) {
                 System.err.println("Client closed connection");
@@ -401,13 +1306,44 @@ class Server {
             } catch (HttpException ex) {
                 System.err.println("Unrecoverable HTTP protocol violation: " + ex.getMessage());
             } finally {
-                try {
-                    this.conn.shutdown();
-                } catch (IOException ignore) {
+                if (!handedOver) {
+                    close();
                 }
             }
         }
 
+        /**
+         * Runs an upgraded connection or event stream on a stream thread, so
+         * this worker is free for other requests
+         *
+         * @return false if the stream limit has been reached
+         */
+        private boolean handOver(final ConnectionUpgrade upgrade) throws IOException {
+            final Socket socket = this.conn.getUpgradeSocket();
+            socket.setSoTimeout(0);
+            socket.setKeepAlive(true);
+            return workers.executeStream(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        upgrade.run(socket.getInputStream(), socket.getOutputStream());
+                    } catch (IOException ex) {
+                        System.err.println("I/O error: " + ex.getMessage());
+                    } finally {
+                        close();
+                    }
+                }
+            });
+        }
+
+        private void close() {
+            try {
+                this.conn.shutdown();
+            } catch (IOException ignore) {
+            }
+            workers.releaseConnection();
+        }
+
     }
 
 }
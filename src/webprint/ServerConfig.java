@@ -0,0 +1,95 @@
+/**
+ * This file is part of WebPrint
+ *
+ * @author Michael Wallace
+ *
+ * Copyright (C) 2015 Michael Wallace, WallaceIT
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the GNU Lesser General Public License (LGPL)
+ * version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ */
+package webprint;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Optional tuning settings for the print server, read from
+ * webprint.properties in the user data directory. Any key can be overridden
+ * with a "webprint." prefixed system property, eg -Dwebprint.workers.mode=virtual
+ *
+ * @author michael
+ */
+class ServerConfig {
+
+    static String fileloc = Main.getUserDataPath() + "webprint.properties";
+    private final Properties props = new Properties();
+
+    public ServerConfig() {
+        loadConfig();
+    }
+
+    private void loadConfig() {
+        File f = new File(fileloc);
+        if (f.exists() && !f.isDirectory()) {
+            InputStream in = null;
+            try {
+                in = new FileInputStream(f);
+                props.load(in);
+            } catch (IOException ex) {
+                Logger.getLogger(ServerConfig.class.getName()).log(Level.SEVERE, null, ex);
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException ex) {
+                        Logger.getLogger(ServerConfig.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
+            }
+        }
+    }
+
+    public String getString(String key, String def) {
+        String value = System.getProperty("webprint." + key);
+        if (value == null) {
+            value = props.getProperty(key);
+        }
+        return value == null ? def : value.trim();
+    }
+
+    public int getInt(String key, int def) {
+        try {
+            return Integer.parseInt(getString(key, String.valueOf(def)));
+        } catch (NumberFormatException ex) {
+            Logger.getLogger(ServerConfig.class.getName()).log(Level.WARNING, "Invalid value for " + key + ", using " + def);
+            return def;
+        }
+    }
+
+    public long getLong(String key, long def) {
+        try {
+            return Long.parseLong(getString(key, String.valueOf(def)));
+        } catch (NumberFormatException ex) {
+            Logger.getLogger(ServerConfig.class.getName()).log(Level.WARNING, "Invalid value for " + key + ", using " + def);
+            return def;
+        }
+    }
+
+    public boolean getBoolean(String key, boolean def) {
+        return Boolean.parseBoolean(getString(key, String.valueOf(def)));
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * This file is part of WebPrint
+ *
+ * @author Michael Wallace
+ *
+ * Copyright (C) 2015 Michael Wallace, WallaceIT
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the GNU Lesser General Public License (LGPL)
+ * version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ */
+package webprint;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Time spent in each phase of a request or print job, reported to clients in
+ * the Server-Timing header. Phases are measured with System.nanoTime(), each
+ * mark() records the time since the previous one.
+ *
+ * @author michael
+ */
+class ServerTiming {
+
+    private final long start = System.nanoTime();
+    private long last = start;
+    private final LinkedHashMap<String, Long> phases = new LinkedHashMap<>();
+
+    /**
+     * Ends a phase
+     *
+     * @param phase name of the phase that just finished, eg. "parse"
+     */
+    public synchronized void mark(String phase) {
+        long now = System.nanoTime();
+        add(phase, now - last);
+        last = now;
+    }
+
+    /**
+     * Adds time to a phase, eg. one measured on another thread
+     *
+     * @param phase
+     * @param nanos
+     */
+    public synchronized void add(String phase, long nanos) {
+        Long time = phases.get(phase);
+        phases.put(phase, time == null ? nanos : time + nanos);
+    }
+
+    /**
+     * Takes the phases of a print job that the request waited for, in place of
+     * the time spent waiting. When a request waits for several jobs the
+     * slowest time of each phase is kept.
+     *
+     * @param job
+     */
+    public void merge(ServerTiming job) {
+        Map<String, Long> jobPhases = job.getPhases();
+        synchronized (this) {
+            for (Map.Entry<String, Long> phase : jobPhases.entrySet()) {
+                Long time = phases.get(phase.getKey());
+                if (time == null || time < phase.getValue()) {
+                    phases.put(phase.getKey(), phase.getValue());
+                }
+            }
+            last = System.nanoTime();
+        }
+    }
+
+    public synchronized Map<String, Long> getPhases() {
+        return new LinkedHashMap<>(phases);
+    }
+
+    /**
+     * @return the Server-Timing header value, durations in ms, ending with
+     * the total time so far
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder header = new StringBuilder();
+        for (Map.Entry<String, Long> phase : phases.entrySet()) {
+            append(header, phase.getKey(), phase.getValue());
+            header.append(", ");
+        }
+        append(header, "total", System.nanoTime() - start);
+        return header.toString();
+    }
+
+    private static void append(StringBuilder header, String phase, long nanos) {
+        header.append(phase).append(";dur=").append(String.format(Locale.ROOT, "%.2f", nanos / 1e6));
+    }
+}
@@ -8,6 +8,7 @@ package webprint;
 import java.awt.Color;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowFocusListener;
+import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -276,13 +277,13 @@ public class SettingsFrame extends javax.swing.JFrame {
             return;
         }
         
-        //jLabel7.setText("Restarting");
-        //jLabel7.setForeground(Color.red);
-        app.saveAddress(address, port);
-        
-        JOptionPane.showMessageDialog(this, "Restart the app for changes to take affect");
-        //jLabel7.setText("server running @ "+app.getAddress()+":"+app.getPort());
-        //jLabel7.setForeground(Color.decode("#00c800"));
+        try {
+            app.saveAddress(address, port);
+            jLabel7.setText("server running @ "+app.getAddress()+":"+app.getPort());
+            jLabel7.setForeground(Color.decode("#00c800"));
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(this, "Error starting server on "+address+":"+port+": "+ex.getMessage());
+        }
     }//GEN-LAST:event_jButton2MouseClicked
 
 
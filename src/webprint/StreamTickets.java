@@ -0,0 +1,100 @@
+/**
+ * This file is part of WebPrint
+ *
+ * @author Michael Wallace
+ *
+ * Copyright (C) 2015 Michael Wallace, WallaceIT
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the GNU Lesser General Public License (LGPL)
+ * version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ */
+package webprint;
+
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tickets for opening an event stream. EventSource can only send
+ * credentials in the URL, where they may end up in proxy logs and browser
+ * history, so an authenticated page asks for a ticket and puts that in the
+ * URL instead of its token. A ticket opens one stream, for the origin it was
+ * issued to, within a few seconds.
+ *
+ * @author michael
+ */
+class StreamTickets {
+
+    // time (ms) a ticket can be used for
+    private static final long TTL = 30000;
+    // tickets kept before new ones are turned away
+    private static final int MAX_TICKETS = 1024;
+
+    private final ConcurrentHashMap<String, Ticket> tickets = new ConcurrentHashMap<>();
+
+    /**
+     * @param origin an authenticated origin
+     * @param cookie the token it authenticated with, checked again while the
+     * stream is open
+     * @return the ticket, or null if too many are waiting to be used
+     */
+    public String issue(String origin, String cookie) {
+        removeExpired();
+        if (tickets.size() >= MAX_TICKETS) {
+            return null;
+        }
+        String id = UUID.randomUUID().toString();
+        tickets.put(id, new Ticket(origin, cookie));
+        return id;
+    }
+
+    /**
+     * Uses up a ticket
+     *
+     * @param id
+     * @param origin the origin opening the stream
+     * @return the ticket, or null if it is unknown, expired, already used or
+     * was issued to another origin
+     */
+    public Ticket redeem(String id, String origin) {
+        Ticket ticket = tickets.remove(id);
+        if (ticket == null || ticket.isExpired(System.currentTimeMillis()) || !ticket.origin.equals(origin)) {
+            return null;
+        }
+        return ticket;
+    }
+
+    private void removeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Ticket> it = tickets.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().isExpired(now)) {
+                it.remove();
+            }
+        }
+    }
+
+    static final class Ticket {
+
+        final String origin;
+        final String cookie;
+        private final long issued = System.currentTimeMillis();
+
+        Ticket(String origin, String cookie) {
+            this.origin = origin;
+            this.cookie = cookie;
+        }
+
+        boolean isExpired(long now) {
+            return now - issued > TTL;
+        }
+    }
+}
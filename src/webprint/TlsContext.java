@@ -0,0 +1,159 @@
+/**
+ * This file is part of WebPrint
+ *
+ * @author Michael Wallace
+ *
+ * Copyright (C) 2015 Michael Wallace, WallaceIT
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the GNU Lesser General Public License (LGPL)
+ * version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ */
+package webprint;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSessionContext;
+import qz.Base64;
+
+/**
+ * Server side TLS for the optional HTTPS listener. Uses the keystore in
+ * tls.keystore, or generates a self-signed certificate for localhost and
+ * 127.0.0.1 in the user data directory the first time it is needed. Sessions
+ * are cached so returning clients resume them instead of doing a full
+ * handshake for every connection.
+ *
+ * @author michael
+ */
+class TlsContext {
+
+    private static final String ALIAS = "webprint";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final SSLContext context;
+    private final Certificate certificate;
+
+    public TlsContext(ServerConfig config) throws IOException, GeneralSecurityException {
+        String path = config.getString("tls.keystore", "");
+        String password = config.getString("tls.password", "");
+        if (path.isEmpty()) {
+            path = Main.getUserDataPath() + "webprint.jks";
+            password = generatedPassword(new File(path + ".pass"));
+            if (!new File(path).exists()) {
+                generate(new File(path), password);
+            }
+        }
+        KeyStore keystore = KeyStore.getInstance(path.endsWith(".p12") || path.endsWith(".pfx") ? "PKCS12" : "JKS");
+        try (InputStream in = new FileInputStream(path)) {
+            keystore.load(in, password.toCharArray());
+        }
+        String alias = keystore.containsAlias(ALIAS) ? ALIAS : keystore.aliases().nextElement();
+        certificate = keystore.getCertificate(alias);
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(keystore, password.toCharArray());
+        context = SSLContext.getInstance("TLS");
+        context.init(keys.getKeyManagers(), null, null);
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(config.getInt("tls.sessioncache", 1000));
+        sessions.setSessionTimeout(config.getInt("tls.sessiontimeout", 24 * 60 * 60));
+    }
+
+    /**
+     * Opens a listening socket, allowing TLS 1.2 and later only where the JVM
+     * supports it
+     *
+     * @param address
+     * @param port
+     * @param backlog
+     * @return
+     * @throws IOException
+     */
+    public SSLServerSocket createServerSocket(String address, int port, int backlog) throws IOException {
+        SSLServerSocket socket = (SSLServerSocket) context.getServerSocketFactory()
+                .createServerSocket(port, backlog, InetAddress.getByName(address));
+        List<String> protocols = new ArrayList<>();
+        for (String protocol : socket.getSupportedProtocols()) {
+            if (protocol.startsWith("TLSv1.") && !protocol.equals("TLSv1.1")) {
+                protocols.add(protocol);
+            }
+        }
+        if (!protocols.isEmpty()) {
+            socket.setEnabledProtocols(protocols.toArray(new String[protocols.size()]));
+        }
+        return socket;
+    }
+
+    /**
+     * @return the server certificate, so it can be installed as trusted
+     */
+    public Certificate getCertificate() {
+        return certificate;
+    }
+
+    private static String generatedPassword(File file) throws IOException {
+        if (file.exists()) {
+            return new String(Files.readAllBytes(file.toPath()), UTF8).trim();
+        }
+        byte[] random = new byte[18];
+        new SecureRandom().nextBytes(random);
+        String password = Base64.encodeBytes(random);
+        Files.write(file.toPath(), password.getBytes(UTF8));
+        return password;
+    }
+
+    /**
+     * Creates a self-signed certificate with keytool, as the JDK has no
+     * public API for it
+     */
+    private static void generate(File keystore, String password) throws IOException {
+        String keytool = new File(new File(System.getProperty("java.home"), "bin"), "keytool").getPath();
+        if (!new File(keytool).exists() && !new File(keytool + ".exe").exists()) {
+            keytool = "keytool";
+        }
+        List<String> command = Arrays.asList(keytool, "-genkeypair", "-alias", ALIAS,
+                "-keyalg", "RSA", "-keysize", "2048", "-validity", "3650",
+                "-dname", "CN=localhost, O=WebPrint", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+                "-storetype", "JKS", "-keystore", keystore.getPath(),
+                "-storepass", password, "-keypass", password);
+        System.out.println("Generating TLS certificate " + keystore.getPath());
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (InputStream in = process.getInputStream()) {
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        }
+        try {
+            if (process.waitFor() != 0 || !keystore.exists()) {
+                throw new IOException("keytool failed: " + output.toString("UTF-8").trim());
+            }
+        } catch (InterruptedException ex) {
+            throw new IOException("Interrupted while generating the TLS certificate");
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * This file is part of WebPrint
+ *
+ * @author Michael Wallace
+ *
+ * Copyright (C) 2015 Michael Wallace, WallaceIT
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the GNU Lesser General Public License (LGPL)
+ * version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ */
+package webprint;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import qz.Base64;
+
+/**
+ * Issues and checks the tokens given to allowed origins. A token holds the
+ * origin, the time it was issued and its scope, signed with HMAC-SHA256
+ * using the secret in auth.secret, or one generated in the user data
+ * directory. Checking a token needs only the secret, so changing the secret
+ * revokes every token.
+ *
+ * @author michael
+ */
+class TokenSigner {
+
+    private static final String VERSION = "1";
+    private static final String SCOPE = "print";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final SecretKeySpec key;
+    // token lifetime in seconds
+    private final long ttl;
+    // Mac instances are not thread safe
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    };
+
+    public TokenSigner(ServerConfig config) throws IOException, NoSuchAlgorithmException {
+        String secret = config.getString("auth.secret", "");
+        if (secret.isEmpty()) {
+            secret = generatedSecret(new File(Main.getUserDataPath() + "webprint.key"));
+        }
+        key = new SecretKeySpec(secret.getBytes(UTF8), "HmacSHA256");
+        ttl = config.getLong("auth.tokenttl", 365L * 24 * 60 * 60);
+        // fail now rather than on the first request if HMAC is unavailable
+        Mac.getInstance("HmacSHA256");
+    }
+
+    /**
+     * @param origin
+     * @return a new token for the origin
+     */
+    public String issue(String origin) {
+        String payload = VERSION + "\n" + origin + "\n" + System.currentTimeMillis() / 1000 + "\n" + SCOPE;
+        String encoded = encode(payload.getBytes(UTF8));
+        return encoded + "." + encode(sign(encoded));
+    }
+
+    /**
+     * Checks the signature, origin, scope and age of a token
+     *
+     * @param origin the origin the request came from
+     * @param token
+     * @return the time the token was issued (s), or -1 if it is not valid
+     */
+    public long verify(String origin, String token) {
+        int dot = token.indexOf('.');
+        if (dot < 0) {
+            return -1;
+        }
+        String encoded = token.substring(0, dot);
+        try {
+            byte[] signature = Base64.decode(token.substring(dot + 1), Base64.URL_SAFE);
+            if (!MessageDigest.isEqual(sign(encoded), signature)) {
+                return -1;
+            }
+            String[] fields = new String(Base64.decode(encoded, Base64.URL_SAFE), UTF8).split("\n");
+            if (fields.length != 4 || !fields[0].equals(VERSION) || !fields[1].equals(origin) || !fields[3].equals(SCOPE)) {
+                return -1;
+            }
+            long issued = Long.parseLong(fields[2]);
+            long now = System.currentTimeMillis() / 1000;
+            return issued <= now + 60 && now - issued < ttl ? issued : -1;
+        } catch (IOException | RuntimeException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param issued the time a valid token was issued (s)
+     * @return true if the token is past half of its lifetime
+     */
+    public boolean isAging(long issued) {
+        return System.currentTimeMillis() / 1000 - issued > ttl / 2;
+    }
+
+    private byte[] sign(String encoded) {
+        return macs.get().doFinal(encoded.getBytes(UTF8));
+    }
+
+    private static String encode(byte[] bytes) {
+        try {
+            return Base64.encodeBytes(bytes, Base64.URL_SAFE);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String generatedSecret(File file) throws IOException {
+        if (file.exists()) {
+            return new String(Files.readAllBytes(file.toPath()), UTF8).trim();
+        }
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        String secret = Base64.encodeBytes(random);
+        Files.write(file.toPath(), secret.getBytes(UTF8));
+        return secret;
+    }
+}
@@ -0,0 +1,230 @@
+/**
+ * This file is part of WebPrint
+ *
+ * @author Michael Wallace
+ *
+ * Copyright (C) 2015 Michael Wallace, WallaceIT
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the GNU Lesser General Public License (LGPL)
+ * version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ */
+package webprint;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import qz.Base64;
+
+/**
+ * Minimal RFC 6455 server side framing over a blocking connection. Messages
+ * are read whole, fragments are joined and pings answered while reading.
+ * Sends may come from any thread.
+ *
+ * @author michael
+ */
+class WebSocket {
+
+    static final int TEXT = 0x1;
+    static final int BINARY = 0x2;
+    static final int CLOSE = 0x8;
+    static final int PING = 0x9;
+    static final int PONG = 0xA;
+
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final OutputStream connection;
+    private final int maxMessage;
+    private boolean closeSent = false;
+
+    public WebSocket(InputStream in, OutputStream out, int maxMessage) {
+        this.in = new DataInputStream(new BufferedInputStream(in, 8192));
+        this.out = new BufferedOutputStream(out, 8192);
+        this.connection = out;
+        this.maxMessage = maxMessage;
+    }
+
+    /**
+     * @param request
+     * @return true if the request asks to switch to the websocket protocol
+     */
+    static boolean isUpgrade(HttpRequest request) {
+        Header upgrade = request.getFirstHeader("Upgrade");
+        return upgrade != null && upgrade.getValue().equalsIgnoreCase("websocket");
+    }
+
+    /**
+     * Computes the Sec-WebSocket-Accept value for a handshake
+     *
+     * @param key the Sec-WebSocket-Key sent by the client
+     * @return
+     */
+    static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return Base64.encodeBytes(sha1.digest((key.trim() + GUID).getBytes(UTF8)));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Reads the next text or binary message
+     *
+     * @return the message, or null once the connection has been closed
+     * @throws IOException if the connection fails or the client breaks the
+     * protocol
+     */
+    public Message read() throws IOException {
+        ByteArrayOutputStream fragments = null;
+        int opcode = -1;
+        for (;;) {
+            int b0 = in.read();
+            if (b0 < 0) {
+                return null;
+            }
+            int b1 = in.readUnsignedByte();
+            boolean fin = (b0 & 0x80) != 0;
+            int op = b0 & 0x0F;
+            if ((b1 & 0x80) == 0) {
+                close(1002);
+                throw new IOException("Client frames must be masked");
+            }
+            long length = b1 & 0x7F;
+            if (length == 126) {
+                length = in.readUnsignedShort();
+            } else if (length == 127) {
+                length = in.readLong();
+            }
+            long total = length + (fragments != null ? fragments.size() : 0);
+            if (length < 0 || total > maxMessage) {
+                close(1009);
+                throw new IOException("Message larger than " + maxMessage + " bytes");
+            }
+            byte[] mask = new byte[4];
+            in.readFully(mask);
+            byte[] data = new byte[(int) length];
+            in.readFully(data);
+            for (int i = 0; i < data.length; i++) {
+                data[i] ^= mask[i & 3];
+            }
+
+            if (op >= CLOSE) {
+                if (op == CLOSE) {
+                    close(data.length >= 2 ? ((data[0] & 0xFF) << 8) | (data[1] & 0xFF) : 1000);
+                    return null;
+                } else if (op == PING) {
+                    send(PONG, data);
+                }
+                continue;
+            }
+            if (op != 0) {
+                opcode = op;
+            } else if (opcode < 0) {
+                close(1002);
+                throw new IOException("Continuation frame without a message");
+            }
+            if (fin && fragments == null) {
+                return new Message(opcode, data);
+            }
+            if (fragments == null) {
+                fragments = new ByteArrayOutputStream(data.length * 2);
+            }
+            fragments.write(data);
+            if (fin) {
+                return new Message(opcode, fragments.toByteArray());
+            }
+        }
+    }
+
+    public void sendText(String text) throws IOException {
+        send(TEXT, text.getBytes(UTF8));
+    }
+
+    public synchronized void send(int opcode, byte[] data) throws IOException {
+        if (closeSent) {
+            throw new IOException("WebSocket is closed");
+        }
+        writeFrame(opcode, data);
+    }
+
+    /**
+     * Sends a close frame, once
+     *
+     * @param code the status code
+     */
+    public synchronized void close(int code) {
+        if (closeSent) {
+            return;
+        }
+        try {
+            writeFrame(CLOSE, new byte[]{(byte) (code >> 8), (byte) code});
+        } catch (IOException ignore) {
+        }
+        closeSent = true;
+    }
+
+    /**
+     * Closes the connection without a close frame, ending any read or send
+     * blocked on it. Does not wait for a send in progress.
+     */
+    public void abort() {
+        try {
+            connection.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    private void writeFrame(int opcode, byte[] data) throws IOException {
+        out.write(0x80 | opcode);
+        if (data.length < 126) {
+            out.write(data.length);
+        } else if (data.length <= 0xFFFF) {
+            out.write(126);
+            out.write(data.length >> 8);
+            out.write(data.length);
+        } else {
+            out.write(127);
+            long length = data.length;
+            for (int i = 56; i >= 0; i -= 8) {
+                out.write((int) (length >> i));
+            }
+        }
+        out.write(data);
+        out.flush();
+    }
+
+    static class Message {
+
+        final int opcode;
+        final byte[] data;
+
+        Message(int opcode, byte[] data) {
+            this.opcode = opcode;
+            this.data = data;
+        }
+
+        public String getText() {
+            return new String(data, UTF8);
+        }
+    }
+}
@@ -0,0 +1,396 @@
+/**
+ * This file is part of WebPrint
+ *
+ * @author Michael Wallace
+ *
+ * Copyright (C) 2015 Michael Wallace, WallaceIT
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the GNU Lesser General Public License (LGPL)
+ * version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ */
+package webprint;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import qz.json.JSONArray;
+import qz.json.JSONException;
+import qz.json.JSONObject;
+
+/**
+ * A persistent request channel. Each text message is a JSON request, as
+ * posted to the HTTP server, with an optional "id" which is copied to its
+ * response so many requests can be in flight at once.
+ *
+ * Print requests never hold up the connection: jobs are queued and the
+ * response is sent when they finish. Job and serial port events for the
+ * origins that have authenticated on the connection, and are still allowed,
+ * are pushed as {"event": type, "origin": origin, "data": {...}} messages.
+ *
+ * Responses and events are queued and written by a writer on a second
+ * stream thread, counted against streams.max, so a slow client never holds
+ * up a print job or the thread that published the event. A client that
+ * falls ws.queue messages behind is disconnected.
+ *
+ * @author michael
+ */
+class WebSocketSession implements Server.ConnectionUpgrade, EventHub.Subscriber, Closeable {
+
+    private static final String CLOSE = "";
+
+    private final Server.HttpHandler handler;
+    private final WorkerPool workers;
+    private final int maxMessage;
+    // the Origin header of the handshake, which every request on the connection is bound to
+    private final String browserOrigin;
+    private final BlockingQueue<String> outgoing;
+    private volatile boolean closed = false;
+    // the origins authenticated on the connection and their tokens
+    private final ConcurrentHashMap<String, String> origins = new ConcurrentHashMap<>();
+    // responses waiting for each job, a repeated request can wait for the same job
+    private final HashMap<String, List<PendingResponse>> pending = new HashMap<>();
+    private volatile WebSocket socket;
+
+    /**
+     * @param handler
+     * @param workers the pool the writer runs on
+     * @param maxMessage largest message accepted (bytes)
+     * @param maxQueued messages that may wait to be sent before the client
+     * is disconnected
+     * @param browserOrigin the origin the browser gave in the handshake, or
+     * null if there was none or the connection comes from the relay window
+     */
+    public WebSocketSession(Server.HttpHandler handler, WorkerPool workers, int maxMessage, int maxQueued, String browserOrigin) {
+        this.handler = handler;
+        this.workers = workers;
+        this.maxMessage = maxMessage;
+        this.browserOrigin = browserOrigin;
+        this.outgoing = new ArrayBlockingQueue<>(maxQueued);
+    }
+
+    @Override
+    public void run(InputStream in, OutputStream out) throws IOException {
+        socket = new WebSocket(in, out, maxMessage);
+        boolean writing = workers != null && workers.executeStream(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        });
+        if (!writing) {
+            // the last stream thread was taken after the handshake, try again later
+            socket.close(1013);
+            return;
+        }
+        handler.events.subscribe(this);
+        try {
+            WebSocket.Message message;
+            while ((message = socket.read()) != null) {
+                if (message.opcode == WebSocket.TEXT) {
+                    onMessage(message.data);
+                } else {
+                    socket.close(1003);
+                    break;
+                }
+            }
+        } finally {
+            handler.events.unsubscribe(this);
+            stop();
+        }
+    }
+
+    /**
+     * Sends a close frame once the messages already queued have been
+     * written, the client's reply ends the session
+     */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            outgoing.offer(CLOSE);
+        }
+    }
+
+    /**
+     * Writes queued messages until the session ends
+     */
+    private void write() {
+        try {
+            for (;;) {
+                String message = outgoing.take();
+                if (message == CLOSE) {
+                    socket.close(1001);
+                    return;
+                }
+                socket.sendText(message);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ex) {
+            // the reading thread sees the failure and ends the session
+            System.err.println("WebSocket send failed: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Ends the writer once the connection is done
+     */
+    private void stop() {
+        closed = true;
+        outgoing.clear();
+        outgoing.offer(CLOSE);
+    }
+
+    private void onMessage(byte[] message) {
+        ServerTiming timing = new ServerTiming();
+        RequestParser parser = new RequestParser(new ByteArrayInputStream(message), message.length);
+        JSONObject jrequest;
+        try {
+            jrequest = parser.parse();
+            timing.mark("parse");
+        } catch (JSONException ex) {
+            JSONObject error = new JSONObject();
+            error.put("error", "Invalid request: " + ex.getMessage());
+            send(error);
+            return;
+        }
+        if (browserOrigin != null) {
+            jrequest.put("origin", browserOrigin);
+        }
+        Object id = jrequest.opt("id");
+        try {
+            process(id, jrequest, parser, timing);
+        } catch (RuntimeException ex) {
+            // eg. a field of the wrong type, the connection stays open for the next request
+            JSONObject error = new JSONObject();
+            error.put("error", "Invalid request: " + ex.getMessage());
+            reply(id, error);
+        }
+    }
+
+    private void process(Object id, JSONObject jrequest, RequestParser parser, ServerTiming timing) {
+        String action = jrequest.optString("a");
+        // print requests are always queued, the response is sent once the jobs finish
+        boolean wait = (action.equals("printraw") || action.equals("printhtml") || action.equals("batch"))
+                && !jrequest.optBoolean("async");
+        if (wait) {
+            jrequest.put("async", true);
+        }
+        // checked before and after as an init request may authenticate the origin
+        if (handler.isAuthenticated(jrequest)) {
+            origins.put(jrequest.getString("origin"), jrequest.optString("cookie"));
+        }
+        try {
+            handler.checkRate(jrequest, browserOrigin);
+        } catch (AdmissionControl.Rejected ex) {
+            reply(id, ex.toJSON());
+            return;
+        }
+        JSONObject response = handler.process(jrequest, parser.getPayload(), timing);
+        if (handler.isAuthenticated(jrequest)) {
+            origins.put(jrequest.getString("origin"), jrequest.optString("cookie"));
+        }
+        if (action.equals("init") && response.optBoolean("pending")) {
+            awaitApproval(id, jrequest.getString("origin"), response.getString("ticket"));
+        } else if (wait && !response.has("error")) {
+            track(new PendingResponse(id, response, action.equals("batch"), timing));
+        } else {
+            // websocket messages have no headers, the relay window reads the timing from the response
+            response.put("timing", timing.toString());
+            reply(id, response);
+        }
+    }
+
+    /**
+     * Answers an init request once the user allows or denies the origin,
+     * instead of the client polling for it
+     */
+    private void awaitApproval(final Object id, final String origin, String ticket) {
+        final ApprovalQueue.Approval approval = handler.approvals.get(origin, ticket);
+        if (approval == null) {
+            return;
+        }
+        approval.whenDecided(new Runnable() {
+            @Override
+            public void run() {
+                JSONObject response = approval.toJSON();
+                if (response.has("cookie")) {
+                    origins.put(origin, response.getString("cookie"));
+                }
+                reply(id, response);
+            }
+        });
+    }
+
+    private void track(PendingResponse response) {
+        synchronized (pending) {
+            for (String job : response.jobs) {
+                List<PendingResponse> waiting = pending.get(job);
+                if (waiting == null) {
+                    waiting = new ArrayList<>(1);
+                    pending.put(job, waiting);
+                }
+                waiting.add(response);
+            }
+        }
+        response.checkDone();
+        // jobs may have finished before they were tracked
+        for (String job : response.jobs) {
+            jobUpdated(job);
+        }
+    }
+
+    private void jobUpdated(String id) {
+        List<PendingResponse> waiting;
+        JobQueue.Job job;
+        synchronized (pending) {
+            if (!pending.containsKey(id)) {
+                return;
+            }
+            job = handler.jobs.get(id);
+            if (job == null || !job.isFinished()) {
+                return;
+            }
+            waiting = pending.remove(id);
+        }
+        for (PendingResponse response : waiting) {
+            response.jobFinished(job);
+        }
+    }
+
+    @Override
+    public void onEvent(String origin, String type, JSONObject data) {
+        if (type.equals("job")) {
+            jobUpdated(data.getString("job"));
+        }
+        if (origin == null || isAllowed(origin)) {
+            JSONObject event = new JSONObject();
+            event.put("event", type);
+            if (origin != null) {
+                event.put("origin", origin);
+            }
+            event.put("data", data);
+            send(event);
+        }
+    }
+
+    /**
+     * @return true if the origin authenticated on the connection and is
+     * still allowed, an origin removed from the ACL stops getting events
+     */
+    private boolean isAllowed(String origin) {
+        String cookie = origins.get(origin);
+        if (cookie == null) {
+            return false;
+        }
+        if (!handler.isAllowed(origin, cookie)) {
+            origins.remove(origin, cookie);
+            return false;
+        }
+        return true;
+    }
+
+    private void reply(Object id, JSONObject response) {
+        if (id != null) {
+            response.put("id", id);
+        }
+        send(response);
+    }
+
+    private void send(JSONObject message) {
+        if (closed) {
+            return;
+        }
+        if (!outgoing.offer(message.toString())) {
+            System.err.println("WebSocket client is not keeping up, closing it");
+            closed = true;
+            outgoing.clear();
+            outgoing.offer(CLOSE);
+            // the writer may be stuck on the client, closing the connection ends both threads
+            socket.abort();
+        }
+    }
+
+    /**
+     * The response to a print request, sent when all of its jobs finish
+     */
+    private class PendingResponse {
+
+        final Object id;
+        final JSONObject response;
+        final boolean batch;
+        final String[] jobs;
+        final ServerTiming timing;
+        private int remaining;
+
+        PendingResponse(Object id, JSONObject response, boolean batch, ServerTiming timing) {
+            this.id = id;
+            this.response = response;
+            this.batch = batch;
+            this.timing = timing;
+            if (batch) {
+                JSONArray results = response.getJSONArray("results");
+                int count = 0;
+                String[] ids = new String[results.length()];
+                for (int i = 0; i < results.length(); i++) {
+                    String job = results.getJSONObject(i).optString("job", null);
+                    if (job != null) {
+                        ids[count++] = job;
+                    }
+                }
+                jobs = new String[count];
+                System.arraycopy(ids, 0, jobs, 0, count);
+            } else {
+                jobs = new String[]{response.getString("job")};
+            }
+            remaining = jobs.length;
+        }
+
+        synchronized void jobFinished(JobQueue.Job job) {
+            if (batch) {
+                JSONArray results = response.getJSONArray("results");
+                for (int i = 0; i < results.length(); i++) {
+                    if (job.id.equals(results.getJSONObject(i).optString("job"))) {
+                        results.put(i, job.toJSON());
+                    }
+                }
+            } else {
+                response.put("status", job.getState().toString());
+                if (job.getState() == JobQueue.State.FAILED) {
+                    response.put("error", job.getError());
+                }
+            }
+            timing.merge(job.timing);
+            remaining--;
+            checkDone();
+        }
+
+        synchronized void checkDone() {
+            if (remaining == 0) {
+                remaining = -1;
+                // same response as a waiting HTTP request
+                if (!batch) {
+                    response.remove("job");
+                }
+                response.put("timing", timing.toString());
+                reply(id, response);
+            }
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/**
+ * This file is part of WebPrint
+ *
+ * @author Michael Wallace
+ *
+ * Copyright (C) 2015 Michael Wallace, WallaceIT
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the GNU Lesser General Public License (LGPL)
+ * version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ */
+package webprint;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Executes connection handlers for the server. Two modes are supported:
+ * "pool" (default) uses a fixed, prestarted set of threads with a bounded
+ * queue, "virtual" runs each connection on a virtual thread when the JVM
+ * supports it (Java 21+) and falls back to the pool otherwise.
+ *
+ * The number of open connections is capped separately so the accept loop can
+ * turn away excess clients without ever waiting on a thread.
+ *
+ * Websockets and event streams stay open for as long as the page does, so
+ * once their handshake is done they are moved to threads of their own,
+ * capped by streams.max, and never hold up the workers serving requests.
+ *
+ * @author michael
+ */
+class WorkerPool {
+
+    public static final String MODE_POOL = "pool";
+    public static final String MODE_VIRTUAL = "virtual";
+
+    private final ExecutorService executor;
+    private final ThreadPoolExecutor pool;
+    private final String mode;
+    private final int maxConnections;
+    private final AtomicInteger connections = new AtomicInteger(0);
+    private final ExecutorService streamExecutor;
+    private final int maxStreams;
+    private final AtomicInteger streams = new AtomicInteger(0);
+
+    public WorkerPool(ServerConfig config) {
+        String requested = config.getString("workers.mode", MODE_POOL);
+        this.maxConnections = Math.max(1, config.getInt("connections.max", 64));
+        this.maxStreams = Math.max(1, config.getInt("streams.max", 32));
+        ExecutorService virtual = null;
+        if (MODE_VIRTUAL.equals(requested)) {
+            virtual = createVirtualExecutor();
+        }
+        if (virtual != null) {
+            this.executor = virtual;
+            this.pool = null;
+            this.mode = MODE_VIRTUAL;
+        } else {
+            int threads = Math.max(1, config.getInt("workers.max", 16));
+            int queueDepth = Math.max(1, config.getInt("workers.queue", 32));
+            this.pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueDepth), new WorkerThreadFactory("webprint-worker-"));
+            // start every thread up front so execute() never has to create one
+            this.pool.prestartAllCoreThreads();
+            this.executor = this.pool;
+            this.mode = MODE_POOL;
+        }
+        // the cap is kept by acquireStream, threads are made as streams are opened
+        this.streamExecutor = virtual != null ? virtual : Executors.newCachedThreadPool(new WorkerThreadFactory("webprint-stream-"));
+        System.out.println("Worker mode: " + mode + ", max connections: " + maxConnections + ", max streams: " + maxStreams);
+    }
+
+    private static ExecutorService createVirtualExecutor() {
+        try {
+            Object exec = java.util.concurrent.Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            return (ExecutorService) exec;
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            Logger.getLogger(WorkerPool.class.getName()).log(Level.WARNING,
+                    "Virtual threads are not available on this JVM, using a thread pool");
+            return null;
+        }
+    }
+
+    /**
+     * Reserves a connection slot.
+     *
+     * @return false if the connection limit has been reached
+     */
+    public boolean acquireConnection() {
+        while (true) {
+            int current = connections.get();
+            if (current >= maxConnections) {
+                return false;
+            }
+            if (connections.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void releaseConnection() {
+        connections.decrementAndGet();
+    }
+
+    /**
+     * Queues a task without blocking the caller.
+     *
+     * @param task
+     * @return false if the queue is full or the pool has been shut down
+     */
+    public boolean execute(Runnable task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Checked before the handshake so the client gets a 503 response
+     *
+     * @param needed stream threads the connection will use
+     * @return false if there are not that many stream threads left under
+     * streams.max
+     */
+    public boolean hasStreamCapacity(int needed) {
+        return streams.get() + needed <= maxStreams;
+    }
+
+    /**
+     * Runs an upgraded connection, or a websocket's writer, on a stream
+     * thread outside the worker pool. The caller still owns the connection
+     * if this returns false.
+     *
+     * @param task
+     * @return false if streams.max streams are open or the pool has been
+     * shut down
+     */
+    public boolean executeStream(final Runnable task) {
+        while (true) {
+            int current = streams.get();
+            if (current >= maxStreams) {
+                return false;
+            }
+            if (streams.compareAndSet(current, current + 1)) {
+                break;
+            }
+        }
+        try {
+            streamExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        streams.decrementAndGet();
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException ex) {
+            streams.decrementAndGet();
+            return false;
+        }
+    }
+
+    public int getActiveStreams() {
+        return streams.get();
+    }
+
+    public int getMaxStreams() {
+        return maxStreams;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public int getActiveConnections() {
+        return connections.get();
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getQueueDepth() {
+        return pool == null ? 0 : pool.getQueue().size();
+    }
+
+    public int getActiveWorkers() {
+        return pool == null ? connections.get() : pool.getActiveCount();
+    }
+
+    /**
+     * Lets connections in progress finish, then interrupts any still running
+     *
+     * @param deadline time (ms) to stop waiting
+     */
+    public void shutdown(long deadline) {
+        executor.shutdown();
+        streamExecutor.shutdown();
+        try {
+            executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            streamExecutor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdownNow();
+        streamExecutor.shutdownNow();
+    }
+
+    static class WorkerThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        WorkerThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
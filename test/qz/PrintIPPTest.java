@@ -0,0 +1,325 @@
+/**
+ * This file is part of WebPrint
+ *
+ * @author Michael Wallace
+ *
+ * Copyright (C) 2015 Michael Wallace, WallaceIT
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the GNU Lesser General Public License (LGPL)
+ * version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ */
+package qz;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import javax.print.PrintException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Runs PrintIPP against a stand-in IPP printer, which decodes the requests
+ * it is sent and answers with the job states queued by each test.
+ *
+ * @author michael
+ */
+public class PrintIPPTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private HttpServer server;
+    private PrintIPP printer;
+    // requests received, in order
+    private final List<Request> requests = Collections.synchronizedList(new ArrayList<Request>());
+    // job-state answers to Get-Job-Attributes, a null entry answers with HTTP 500
+    private final LinkedList<Integer> jobStates = new LinkedList<>();
+    private List<String> formats = Arrays.asList("application/octet-stream", "text/plain");
+    private volatile int printerState = 3;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/printers/Test", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                answer(exchange);
+            }
+        });
+        server.start();
+        printer = new PrintIPP("ipp://127.0.0.1:" + server.getAddress().getPort() + "/printers/Test");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void printSendsDataAndFollowsJob() throws Exception {
+        jobStates.add(5);
+        jobStates.add(9);
+        RecordingListener listener = new RecordingListener();
+        byte[] buffer = "..ABC\u001b@..".getBytes(UTF8);
+        // only the remaining bytes are sent
+        ByteBuffer data = ByteBuffer.wrap(buffer, 2, buffer.length - 4);
+
+        assertTrue(printer.print(data, "Receipt", listener, 10000));
+
+        Request print = requests.get(1);
+        assertEquals(0x0002, print.operation);
+        assertEquals(Arrays.asList("attributes-charset", "attributes-natural-language", "printer-uri"),
+                new ArrayList<>(print.attributes.keySet()).subList(0, 3));
+        assertEquals(printer.getPrinterUri(), print.get("printer-uri"));
+        assertEquals("Receipt", print.get("job-name"));
+        assertEquals("application/octet-stream", print.get("document-format"));
+        assertEquals("ABC\u001b@", new String(print.data, UTF8));
+        assertEquals(2, data.position());
+        assertEquals(Arrays.asList("sent 42", "pending", "processing", "completed"), listener.events);
+        assertEquals(42, requests.get(2).attributes.get("job-id").get(0));
+    }
+
+    @Test
+    public void cupsRawFormatIsUsedWhenOctetStreamIsNot() throws Exception {
+        formats = Arrays.asList("application/vnd.cups-raw", "application/pdf");
+        jobStates.add(9);
+        printer.print(ByteBuffer.wrap(new byte[]{1, 2, 3}), "Raw", null, 10000);
+        assertEquals("application/vnd.cups-raw", requests.get(1).get("document-format"));
+    }
+
+    @Test(expected = PrintException.class)
+    public void printerWithoutRawFormatIsRejected() throws Exception {
+        formats = Arrays.asList("application/pdf");
+        printer.print(ByteBuffer.wrap(new byte[]{1}), "Raw", null, 10000);
+    }
+
+    @Test
+    public void abortedJobFails() throws Exception {
+        jobStates.add(5);
+        jobStates.add(8);
+        RecordingListener listener = new RecordingListener();
+        try {
+            printer.print(ByteBuffer.wrap(new byte[]{1}), "Raw", listener, 10000);
+            fail("an aborted job should fail");
+        } catch (PrintException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("aborted"));
+        }
+        assertEquals("sent 42", listener.events.get(0));
+    }
+
+    @Test
+    public void jobIsLeftToPrinterWhenStateCannotBeRead() throws Exception {
+        jobStates.add(null);
+        jobStates.add(null);
+        jobStates.add(null);
+        RecordingListener listener = new RecordingListener();
+        assertFalse(printer.print(ByteBuffer.wrap(new byte[]{1}), "Raw", listener, 10000));
+        assertEquals(Arrays.asList("sent 42", "pending"), listener.events);
+    }
+
+    @Test
+    public void failedPollIsRetried() throws Exception {
+        jobStates.add(null);
+        jobStates.add(9);
+        assertTrue(printer.print(ByteBuffer.wrap(new byte[]{1}), "Raw", null, 10000));
+    }
+
+    @Test
+    public void jobIsLeftToPrinterAfterTimeout() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            jobStates.add(5);
+        }
+        long start = System.currentTimeMillis();
+        assertFalse(printer.print(ByteBuffer.wrap(new byte[]{1}), "Raw", null, 300));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void unavailableReasonIsReadFromPrinterState() throws Exception {
+        assertNull(printer.getUnavailableReason());
+        printerState = 5;
+        assertEquals("stopped: paused", printer.getUnavailableReason());
+        printerState = 3;
+        Map<String, List<Object>> attributes = printer.getPrinterAttributes("printer-state", "printer-state-reasons");
+        assertEquals(3, attributes.get("printer-state").get(0));
+        Request request = requests.get(requests.size() - 1);
+        assertEquals(0x000B, request.operation);
+        assertEquals(Arrays.<Object>asList("printer-state", "printer-state-reasons"), request.attributes.get("requested-attributes"));
+    }
+
+    @Test(expected = java.net.URISyntaxException.class)
+    public void nonIppUriIsRejected() throws Exception {
+        new PrintIPP("ftp://127.0.0.1/printers/Test");
+    }
+
+    /**
+     * Answers one request as a printer would
+     */
+    private void answer(HttpExchange exchange) throws IOException {
+        Request request = Request.read(exchange.getRequestBody());
+        requests.add(request);
+        Response response = new Response();
+        switch (request.operation) {
+            case 0x0002:
+                response.integer(0x21, "job-id", 42);
+                response.integer(0x23, "job-state", 3);
+                response.string(0x44, "job-state-reasons", "none");
+                break;
+            case 0x0009:
+                Integer state;
+                synchronized (jobStates) {
+                    state = jobStates.isEmpty() ? 9 : jobStates.removeFirst();
+                }
+                if (state == null) {
+                    exchange.sendResponseHeaders(500, -1);
+                    exchange.close();
+                    return;
+                }
+                response.integer(0x23, "job-state", state);
+                response.string(0x44, "job-state-reasons", state == 8 ? "job-aborted-by-system" : "none");
+                break;
+            default:
+                response.integer(0x23, "printer-state", printerState);
+                response.string(0x44, "printer-state-reasons", printerState == 5 ? "paused" : "none");
+                response.bool("printer-is-accepting-jobs", true);
+                for (int i = 0; i < formats.size(); i++) {
+                    response.string(0x49, i == 0 ? "document-format-supported" : "", formats.get(i));
+                }
+        }
+        byte[] body = response.toByteArray(request.id);
+        exchange.getResponseHeaders().set("Content-Type", "application/ipp");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * A decoded IPP request
+     */
+    static class Request {
+
+        int operation;
+        int id;
+        final Map<String, List<Object>> attributes = new LinkedHashMap<>();
+        byte[] data;
+
+        static Request read(InputStream body) throws IOException {
+            DataInputStream in = new DataInputStream(body);
+            Request request = new Request();
+            assertEquals(0x0101, in.readUnsignedShort());
+            request.operation = in.readUnsignedShort();
+            request.id = in.readInt();
+            assertEquals(0x01, in.readUnsignedByte());
+            List<Object> values = null;
+            int tag;
+            while ((tag = in.readUnsignedByte()) != 0x03) {
+                byte[] name = new byte[in.readUnsignedShort()];
+                in.readFully(name);
+                byte[] value = new byte[in.readUnsignedShort()];
+                in.readFully(value);
+                if (name.length > 0) {
+                    values = new ArrayList<>();
+                    request.attributes.put(new String(name, UTF8), values);
+                }
+                assertNotNull(values);
+                values.add(tag == 0x21 ? (Object) ByteBuffer.wrap(value).getInt() : new String(value, UTF8));
+            }
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                data.write(buffer, 0, read);
+            }
+            request.data = data.toByteArray();
+            return request;
+        }
+
+        Object get(String name) {
+            List<Object> values = attributes.get(name);
+            return values == null ? null : values.get(0);
+        }
+    }
+
+    /**
+     * Encodes a successful response with one group of attributes
+     */
+    static class Response {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        void integer(int tag, String name, int value) throws IOException {
+            write(tag, name, ByteBuffer.allocate(4).putInt(value).array());
+        }
+
+        void bool(String name, boolean value) throws IOException {
+            write(0x22, name, new byte[]{(byte) (value ? 1 : 0)});
+        }
+
+        void string(int tag, String name, String value) throws IOException {
+            write(tag, name, value.getBytes(UTF8));
+        }
+
+        private void write(int tag, String name, byte[] value) throws IOException {
+            byte[] encodedName = name.getBytes(UTF8);
+            out.writeByte(tag);
+            out.writeShort(encodedName.length);
+            out.write(encodedName);
+            out.writeShort(value.length);
+            out.write(value);
+        }
+
+        byte[] toByteArray(int requestId) throws IOException {
+            ByteArrayOutputStream message = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(message);
+            header.writeShort(0x0101);
+            header.writeShort(0x0000);
+            header.writeInt(requestId);
+            header.writeByte(0x01);
+            header.write(bytes.toByteArray());
+            header.writeByte(0x03);
+            return message.toByteArray();
+        }
+    }
+
+    static class RecordingListener implements PrintIPP.JobListener {
+
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void dataTransferred(int jobId) {
+            events.add("sent " + jobId);
+        }
+
+        @Override
+        public void jobStateChanged(int jobId, String state, String reasons) {
+            events.add(state);
+        }
+    }
+}
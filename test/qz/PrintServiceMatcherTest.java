@@ -0,0 +1,111 @@
+/**
+ * This file is part of WebPrint
+ *
+ * @author Michael Wallace
+ *
+ * Copyright (C) 2015 Michael Wallace, WallaceIT
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the GNU Lesser General Public License (LGPL)
+ * version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ */
+package qz;
+
+import java.util.Locale;
+import java.util.regex.Pattern;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that PrintServiceMatcher ranks printer names the same way as the
+ * \b regular expressions it used before.
+ *
+ * @author michael
+ */
+public class PrintServiceMatcherTest {
+
+    private static final String[] NAMES = {
+        "Receipt",
+        "Receipt Printer",
+        "EPSON TM-T88V Receipt",
+        "HP LaserJet 400 M401 PCL 6",
+        "\\\\office-server\\Kitchen_Printer",
+        "Brother HL-2270DW (copy 1)",
+        "Zebra ZP450-200dpi",
+        "label.printer.local",
+        "Caf\u00e9 Bon",
+        "Microsoft Print to PDF",
+        "Star TSP100 Cutter (TSP143)",
+        "aaa aa",
+        "x_y-z 9"
+    };
+
+    private static final String[] MISSES = {"canon", "receipts", "tm88", "pdf printer", "-", " "};
+
+    @Test
+    public void everySubstringMatchesTheOldTiers() {
+        int compared = 0;
+        for (String name : NAMES) {
+            for (String other : NAMES) {
+                for (int start = 0; start < other.length(); start++) {
+                    for (int end = start + 1; end <= other.length(); end++) {
+                        assertSameTier(name, other.substring(start, end));
+                        compared++;
+                    }
+                }
+            }
+            for (String miss : MISSES) {
+                assertSameTier(name, miss);
+            }
+        }
+        assertTrue(compared > 10000);
+    }
+
+    @Test
+    public void tiers() {
+        assertEquals(3, tier("EPSON TM-T88V Receipt", "tm"));
+        assertEquals(3, tier("EPSON TM-T88V Receipt", "t88v receipt"));
+        assertEquals(2, tier("EPSON TM-T88V Receipt", "rec"));
+        assertEquals(1, tier("EPSON TM-T88V Receipt", "88v"));
+        assertEquals(0, tier("EPSON TM-T88V Receipt", "receipts"));
+        // a later whole word beats an earlier partial match
+        assertEquals(3, tier("Bureceipt Receipt", "receipt"));
+        assertEquals(2, tier("Bureceipt Receipts", "receipt"));
+        // as with \b, a key starting or ending with punctuation has no word
+        // boundary there, so it is only ever a partial match
+        assertEquals(1, tier("Star TSP100 Cutter (TSP143)", "(tsp143)"));
+        assertEquals(3, tier("Star TSP100 Cutter (TSP143)", "cutter (tsp143"));
+        assertEquals(1, tier("Star TSP100 Cutter (TSP143)", "r ("));
+    }
+
+    private static void assertSameTier(String name, String key) {
+        assertEquals("\"" + key + "\" in \"" + name + "\"", regexTier(name, key), tier(name, key));
+    }
+
+    private static int tier(String name, String key) {
+        return PrintServiceMatcher.matchTier(name.toLowerCase(Locale.ROOT), key.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * The tiers as findPrinter used to find them, with the name quoted so
+     * punctuation in the key is matched literally
+     */
+    private static int regexTier(String name, String key) {
+        String quoted = Pattern.quote(key);
+        if (Pattern.compile("\\b" + quoted + "\\b", Pattern.CASE_INSENSITIVE).matcher(name).find()) {
+            return 3;
+        } else if (Pattern.compile("\\b" + quoted, Pattern.CASE_INSENSITIVE).matcher(name).find()) {
+            return 2;
+        } else if (Pattern.compile(quoted, Pattern.CASE_INSENSITIVE).matcher(name).find()) {
+            return 1;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * This file is part of WebPrint
+ *
+ * @author Michael Wallace
+ *
+ * Copyright (C) 2015 Michael Wallace, WallaceIT
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the GNU Lesser General Public License (LGPL)
+ * version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ */
+package webprint;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import qz.json.JSONObject;
+import static org.junit.Assert.*;
+
+/**
+ * Checks which print requests IdempotencyCache remembers, and for how long.
+ *
+ * @author michael
+ */
+public class IdempotencyCacheTest {
+
+    private IdempotencyCache cache;
+
+    @Before
+    public void setUp() {
+        System.setProperty("webprint.idempotency.ttl", "1000");
+        System.setProperty("webprint.idempotency.max", "3");
+        cache = new IdempotencyCache(new ServerConfig());
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty("webprint.idempotency.ttl");
+        System.clearProperty("webprint.idempotency.max");
+    }
+
+    @Test
+    public void repeatGetsOriginalResponse() throws Exception {
+        assertNull(cache.claim("a"));
+        cache.complete("a", new JSONObject("{\"job\":\"1\",\"status\":\"queued\"}"));
+        IdempotencyCache.Entry earlier = cache.claim("a");
+        assertNotNull(earlier);
+        assertEquals("1", earlier.await(100).getString("job"));
+    }
+
+    @Test
+    public void repeatWaitsForOriginalToBeQueued() throws Exception {
+        assertNull(cache.claim("a"));
+        final IdempotencyCache.Entry earlier = cache.claim("a");
+        assertNull(earlier.await(50));
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                cache.complete("a", new JSONObject("{\"job\":\"1\"}"));
+            }
+        }).start();
+        assertEquals("1", earlier.await(5000).getString("job"));
+    }
+
+    @Test
+    public void rejectedRequestIsForgotten() {
+        assertNull(cache.claim("a"));
+        cache.complete("a", new JSONObject("{\"retryAfter\":5,\"error\":\"Too many print jobs are waiting\"}"));
+        assertNull(cache.claim("a"));
+    }
+
+    @Test
+    public void failedRequestIsRemembered() throws Exception {
+        assertNull(cache.claim("a"));
+        cache.complete("a", new JSONObject("{\"error\":\"No printer specified in the request.\"}"));
+        assertEquals("No printer specified in the request.", cache.claim("a").await(100).getString("error"));
+    }
+
+    @Test
+    public void batchWithQueuedJobsIsRemembered() throws Exception {
+        assertNull(cache.claim("a"));
+        cache.complete("a", new JSONObject("{\"results\":[{\"job\":\"1\",\"status\":\"queued\"},{\"retryAfter\":5,\"error\":\"busy\"}]}"));
+        IdempotencyCache.Entry earlier = cache.claim("a");
+        assertNotNull("a retry must not print the queued job again", earlier);
+        JSONObject response = earlier.await(100);
+        assertEquals("1", response.getJSONArray("results").getJSONObject(0).getString("job"));
+        assertEquals(5, response.getJSONArray("results").getJSONObject(1).getInt("retryAfter"));
+    }
+
+    @Test
+    public void batchWithNothingQueuedIsForgotten() {
+        assertNull(cache.claim("a"));
+        cache.complete("a", new JSONObject("{\"results\":[{\"status\":\"failed\",\"error\":\"bad\"},{\"retryAfter\":5,\"error\":\"busy\"}]}"));
+        assertNull(cache.claim("a"));
+    }
+
+    @Test
+    public void releaseTellsRepeatsToRetry() throws Exception {
+        assertNull(cache.claim("a"));
+        IdempotencyCache.Entry earlier = cache.claim("a");
+        cache.release("a");
+        assertTrue(earlier.await(100).getString("error").contains("try again"));
+        assertNull(cache.claim("a"));
+    }
+
+    @Test
+    public void keysExpireAfterTtl() throws Exception {
+        assertNull(cache.claim("a"));
+        cache.complete("a", new JSONObject("{\"job\":\"1\"}"));
+        assertNotNull(cache.claim("a"));
+        Thread.sleep(1100);
+        assertNull(cache.claim("a"));
+    }
+
+    @Test
+    public void oldestKeysAreDroppedOverMax() {
+        for (String key : new String[]{"a", "b", "c", "d"}) {
+            assertNull(cache.claim(key));
+            cache.complete(key, new JSONObject("{\"job\":\"" + key + "\"}"));
+        }
+        assertNotNull(cache.claim("d"));
+        assertNull(cache.claim("a"));
+    }
+}
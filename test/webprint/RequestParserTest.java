@@ -0,0 +1,140 @@
+/**
+ * This file is part of WebPrint
+ *
+ * @author Michael Wallace
+ *
+ * Copyright (C) 2015 Michael Wallace, WallaceIT
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the GNU Lesser General Public License (LGPL)
+ * version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ */
+package webprint;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import qz.Base64;
+import qz.json.JSONException;
+import qz.json.JSONObject;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that RequestParser decodes printraw data while reading the body and
+ * leaves every other field as a normal JSON parser would.
+ *
+ * @author michael
+ */
+public class RequestParserTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void printrawDataIsDecodedAsItIsRead() throws Exception {
+        byte[] data = new byte[3 * 1024 + 1];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 7);
+        }
+        RequestParser parser = parser("{\"a\":\"printraw\",\"printer\":\"Receipt\",\"data\":\"" + Base64.encodeBytes(data) + "\",\"async\":true}");
+        JSONObject json = parser.parse();
+        assertFalse(json.has("data"));
+        assertEquals("Receipt", json.getString("printer"));
+        assertTrue(json.getBoolean("async"));
+        assertArrayEquals(data, bytes(parser.getPayload()));
+    }
+
+    @Test
+    public void dataBeforeActionIsKeptAsString() throws Exception {
+        RequestParser parser = parser("{\"data\":\"QUJD\",\"a\":\"printraw\",\"printer\":\"Receipt\"}");
+        JSONObject json = parser.parse();
+        assertNull(parser.getPayload());
+        assertEquals("QUJD", json.getString("data"));
+        // decoded when the job is made instead
+        assertEquals(3, PrintJob.fromRequest(json, parser.getPayload()).getSize());
+    }
+
+    @Test
+    public void otherActionsKeepDataAsString() throws Exception {
+        RequestParser parser = parser("{\"a\":\"printhtml\",\"printer\":\"Office\",\"data\":\"<p>QUJD<\\/p>\"}");
+        JSONObject json = parser.parse();
+        assertNull(parser.getPayload());
+        assertEquals("<p>QUJD</p>", json.getString("data"));
+    }
+
+    @Test
+    public void escapesAndLineBreaksAreDecoded() throws Exception {
+        byte[] data = {(byte) 0xfb, (byte) 0xff, (byte) 0xbf, 0x00, 0x41};
+        String encoded = Base64.encodeBytes(data);
+        assertTrue(encoded.contains("/") && encoded.contains("+"));
+        String escaped = encoded.substring(0, 4) + "\\n" + encoded.substring(4);
+        escaped = escaped.replace("/", "\\/").replace("+", "\\u002b");
+        RequestParser parser = parser("{\"a\":\"printraw\",\"data\":\"" + escaped + "\"}");
+        parser.parse();
+        assertArrayEquals(data, bytes(parser.getPayload()));
+    }
+
+    @Test
+    public void unknownLengthIsDecoded() throws Exception {
+        byte[] body = "{\"a\":\"printraw\",\"data\":\"QUJD\"}".getBytes(UTF8);
+        RequestParser parser = new RequestParser(new ByteArrayInputStream(body), -1);
+        parser.parse();
+        assertEquals("ABC", new String(bytes(parser.getPayload()), UTF8));
+    }
+
+    @Test
+    public void nonStringDataIsKept() throws Exception {
+        RequestParser parser = parser("{\"a\":\"printraw\",\"data\":null}");
+        JSONObject json = parser.parse();
+        assertNull(parser.getPayload());
+        assertTrue(json.isNull("data"));
+    }
+
+    @Test(expected = JSONException.class)
+    public void nonAsciiDataIsRejected() throws Exception {
+        parser("{\"a\":\"printraw\",\"data\":\"QU\u00e9D\"}").parse();
+    }
+
+    @Test(expected = JSONException.class)
+    public void unterminatedDataIsRejected() throws Exception {
+        parser("{\"a\":\"printraw\",\"data\":\"QUJD").parse();
+    }
+
+    @Test(expected = JSONException.class)
+    public void nonObjectIsRejected() throws Exception {
+        parser("[\"printraw\"]").parse();
+    }
+
+    @Test
+    public void emptyObjectIsParsed() throws Exception {
+        assertEquals(0, parser(" {} ").parse().length());
+    }
+
+    @Test
+    public void bodyIsReadWhole() throws Exception {
+        byte[] body = new byte[20000];
+        Arrays.fill(body, (byte) 'x');
+        body[body.length - 1] = 'y';
+        assertArrayEquals(body, bytes(RequestParser.readBody(new ByteArrayInputStream(body), body.length)));
+        assertArrayEquals(body, bytes(RequestParser.readBody(new ByteArrayInputStream(body), -1)));
+    }
+
+    private static RequestParser parser(String body) {
+        byte[] bytes = body.getBytes(UTF8);
+        return new RequestParser(new ByteArrayInputStream(bytes), bytes.length);
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * This file is part of WebPrint
+ *
+ * @author Michael Wallace
+ *
+ * Copyright (C) 2015 Michael Wallace, WallaceIT
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the GNU Lesser General Public License (LGPL)
+ * version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ */
+package webprint;
+
+import java.nio.charset.Charset;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import qz.Base64;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that TokenSigner only accepts untouched, unexpired tokens for the
+ * origin they were issued to.
+ *
+ * @author michael
+ */
+public class TokenSignerTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String SECRET = "test secret";
+    private static final long TTL = 3600;
+    private static final String ORIGIN = "https://shop.example.com";
+
+    private TokenSigner signer;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty("webprint.auth.secret", SECRET);
+        System.setProperty("webprint.auth.tokenttl", String.valueOf(TTL));
+        signer = new TokenSigner(new ServerConfig());
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty("webprint.auth.secret");
+        System.clearProperty("webprint.auth.tokenttl");
+    }
+
+    @Test
+    public void issuedTokenIsAccepted() {
+        long now = System.currentTimeMillis() / 1000;
+        long issued = signer.verify(ORIGIN, signer.issue(ORIGIN));
+        assertTrue(Math.abs(issued - now) <= 1);
+        assertFalse(signer.isAging(issued));
+    }
+
+    @Test
+    public void tokenIsBoundToItsOrigin() {
+        String token = signer.issue(ORIGIN);
+        assertEquals(-1, signer.verify("https://evil.example.com", token));
+        assertEquals(-1, signer.verify(ORIGIN + ".evil.com", token));
+    }
+
+    @Test
+    public void tamperedPayloadIsRejected() {
+        String token = signer.issue(ORIGIN);
+        int dot = token.indexOf('.');
+        // the same signature on a payload naming another origin
+        String forged = encode(payload("https://evil.example.com", now())) + token.substring(dot);
+        assertEquals(-1, signer.verify("https://evil.example.com", forged));
+        char c = token.charAt(2);
+        assertEquals(-1, signer.verify(ORIGIN, token.substring(0, 2) + (c == 'A' ? 'B' : 'A') + token.substring(3)));
+    }
+
+    @Test
+    public void tamperedSignatureIsRejected() {
+        String token = signer.issue(ORIGIN);
+        char c = token.charAt(token.length() - 2);
+        assertEquals(-1, signer.verify(ORIGIN, token.substring(0, token.length() - 2) + (c == 'A' ? 'B' : 'A') + token.charAt(token.length() - 1)));
+        assertEquals(-1, signer.verify(ORIGIN, token.substring(0, token.indexOf('.') + 1)));
+    }
+
+    @Test
+    public void tokenFromAnotherSecretIsRejected() throws Exception {
+        System.setProperty("webprint.auth.secret", "another secret");
+        TokenSigner other = new TokenSigner(new ServerConfig());
+        assertEquals(-1, signer.verify(ORIGIN, other.issue(ORIGIN)));
+    }
+
+    @Test
+    public void expiredTokenIsRejected() throws Exception {
+        assertEquals(-1, signer.verify(ORIGIN, sign(payload(ORIGIN, now() - TTL - 1))));
+        long aging = now() - TTL / 2 - 10;
+        assertEquals(aging, signer.verify(ORIGIN, sign(payload(ORIGIN, aging))));
+        assertTrue(signer.isAging(aging));
+    }
+
+    @Test
+    public void tokenFromTheFutureIsRejected() throws Exception {
+        assertEquals(-1, signer.verify(ORIGIN, sign(payload(ORIGIN, now() + 3600))));
+    }
+
+    @Test
+    public void otherVersionOrScopeIsRejected() throws Exception {
+        assertEquals(-1, signer.verify(ORIGIN, sign("2\n" + ORIGIN + "\n" + now() + "\nprint")));
+        assertEquals(-1, signer.verify(ORIGIN, sign("1\n" + ORIGIN + "\n" + now() + "\nadmin")));
+        assertEquals(-1, signer.verify(ORIGIN, sign("1\n" + ORIGIN + "\n" + now() + "\nprint\nextra")));
+    }
+
+    @Test
+    public void malformedTokensAreRejected() throws Exception {
+        for (String token : new String[]{"", ".", "abc", "abc.def", "..", "a.b.c", sign("1\n" + ORIGIN + "\nsoon\nprint")}) {
+            assertEquals(token, -1, signer.verify(ORIGIN, token));
+        }
+    }
+
+    private static long now() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    private static String payload(String origin, long issued) {
+        return "1\n" + origin + "\n" + issued + "\nprint";
+    }
+
+    /**
+     * Signs a payload with the test secret, as TokenSigner does
+     */
+    private static String sign(String payload) throws Exception {
+        String encoded = encode(payload);
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(SECRET.getBytes(UTF8), "HmacSHA256"));
+        return encoded + "." + Base64.encodeBytes(mac.doFinal(encoded.getBytes(UTF8)), Base64.URL_SAFE);
+    }
+
+    private static String encode(String payload) {
+        try {
+            return Base64.encodeBytes(payload.getBytes(UTF8), Base64.URL_SAFE);
+        } catch (java.io.IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * This file is part of WebPrint
+ *
+ * @author Michael Wallace
+ *
+ * Copyright (C) 2015 Michael Wallace, WallaceIT
+ *
+ * All rights reserved. This program and the accompanying materials are made
+ * available under the terms of the GNU Lesser General Public License (LGPL)
+ * version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ */
+package webprint;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Feeds client frames to WebSocket and checks the messages it reads and the
+ * frames it writes back.
+ *
+ * @author michael
+ */
+public class WebSocketTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] MASK = {0x37, (byte) 0xfa, 0x21, 0x3d};
+
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+    @Test
+    public void acceptKeyMatchesRfcExample() {
+        assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", WebSocket.acceptKey("dGhlIHNhbXBsZSBub25jZQ=="));
+    }
+
+    @Test
+    public void maskedMessagesOfEachLengthAreRead() throws Exception {
+        // 7 bit, 16 bit and 64 bit lengths
+        for (int length : new int[]{0, 125, 126, 65535, 65536}) {
+            byte[] data = new byte[length];
+            for (int i = 0; i < length; i++) {
+                data[i] = (byte) i;
+            }
+            WebSocket.Message message = socket(1 << 20, frame(true, WebSocket.BINARY, data)).read();
+            assertEquals(WebSocket.BINARY, message.opcode);
+            assertArrayEquals("length " + length, data, message.data);
+        }
+    }
+
+    @Test
+    public void fragmentsAreJoinedAndPingsAnswered() throws Exception {
+        WebSocket socket = socket(1024,
+                frame(false, WebSocket.TEXT, bytes("{\"a\":")),
+                frame(true, WebSocket.PING, bytes("hi")),
+                frame(false, 0, bytes("\"init\"")),
+                frame(true, 0, bytes("}")));
+        WebSocket.Message message = socket.read();
+        assertEquals(WebSocket.TEXT, message.opcode);
+        assertEquals("{\"a\":\"init\"}", message.getText());
+        // an unmasked pong with the ping's data
+        assertArrayEquals(new byte[]{(byte) 0x8A, 2, 'h', 'i'}, written.toByteArray());
+    }
+
+    @Test
+    public void endOfStreamEndsReading() throws Exception {
+        WebSocket socket = socket(1024, frame(true, WebSocket.TEXT, bytes("one")));
+        assertEquals("one", socket.read().getText());
+        assertNull(socket.read());
+    }
+
+    @Test
+    public void closeFrameIsAnswered() throws Exception {
+        WebSocket socket = socket(1024, frame(true, WebSocket.CLOSE, new byte[]{0x03, (byte) 0xE9}));
+        assertNull(socket.read());
+        assertArrayEquals(new byte[]{(byte) 0x88, 2, 0x03, (byte) 0xE9}, written.toByteArray());
+        try {
+            socket.sendText("late");
+            fail("sending after the close frame should fail");
+        } catch (IOException expected) {
+        }
+        // only one close frame
+        socket.close(1000);
+        assertEquals(4, written.size());
+    }
+
+    @Test
+    public void unmaskedFrameIsRejected() throws Exception {
+        byte[] frame = frame(true, WebSocket.TEXT, bytes("x"));
+        frame[1] &= 0x7F;
+        assertRejected(socket(1024, Arrays.copyOf(frame, 3)), 1002);
+    }
+
+    @Test
+    public void oversizeFrameIsRejected() throws Exception {
+        assertRejected(socket(10, frame(true, WebSocket.TEXT, new byte[11])), 1009);
+    }
+
+    @Test
+    public void oversizeFragmentsAreRejected() throws Exception {
+        assertRejected(socket(10, frame(false, WebSocket.TEXT, new byte[6]), frame(true, 0, new byte[6])), 1009);
+    }
+
+    @Test
+    public void negativeLengthIsRejected() throws Exception {
+        byte[] header = {(byte) 0x81, (byte) 0xFF, (byte) 0x80, 0, 0, 0, 0, 0, 0, 0};
+        assertRejected(socket(10, header), 1009);
+    }
+
+    @Test
+    public void continuationWithoutMessageIsRejected() throws Exception {
+        assertRejected(socket(1024, frame(true, 0, bytes("x"))), 1002);
+    }
+
+    @Test
+    public void sentFramesAreUnmasked() throws Exception {
+        WebSocket socket = socket(1024);
+        char[] text = new char[200];
+        Arrays.fill(text, 'a');
+        socket.sendText(new String(text));
+        byte[] frame = written.toByteArray();
+        assertEquals(204, frame.length);
+        assertArrayEquals(new byte[]{(byte) 0x81, 126, 0, (byte) 200}, Arrays.copyOf(frame, 4));
+        assertEquals('a', frame[4]);
+    }
+
+    private void assertRejected(WebSocket socket, int code) {
+        try {
+            socket.read();
+            fail("the frame should be rejected");
+        } catch (IOException expected) {
+        }
+        assertArrayEquals(new byte[]{(byte) 0x88, 2, (byte) (code >> 8), (byte) code}, written.toByteArray());
+    }
+
+    private WebSocket socket(int maxMessage, byte[]... frames) throws IOException {
+        ByteArrayOutputStream in = new ByteArrayOutputStream();
+        for (byte[] frame : frames) {
+            in.write(frame);
+        }
+        return new WebSocket(new ByteArrayInputStream(in.toByteArray()), written, maxMessage);
+    }
+
+    /**
+     * Encodes a frame as a client sends it, masked
+     */
+    private static byte[] frame(boolean fin, int opcode, byte[] data) {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write((fin ? 0x80 : 0) | opcode);
+        if (data.length < 126) {
+            frame.write(0x80 | data.length);
+        } else if (data.length <= 0xFFFF) {
+            frame.write(0x80 | 126);
+            frame.write(data.length >> 8);
+            frame.write(data.length);
+        } else {
+            frame.write(0x80 | 127);
+            for (int i = 56; i >= 0; i -= 8) {
+                frame.write((int) ((long) data.length >> i));
+            }
+        }
+        frame.write(MASK, 0, 4);
+        for (int i = 0; i < data.length; i++) {
+            frame.write(data[i] ^ MASK[i & 3]);
+        }
+        return frame.toByteArray();
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(UTF8);
+    }
+}
@@ -20,16 +20,29 @@ var WebPrint = function (init, opt) {
     var options = {
         relayHost: "127.0.0.1",
         relayPort: "8080",
-        listPrinterCallback: null,
+        direct: false, // send requests straight to the app over HTTPS, without the relay window, needs tls.port set in the app
+        directUrl: "https://127.0.0.1:8443",
+        listPrinterCallback: null, // receives the printer names, the timing and each printer's status eg. {Receipt: "online", Office: "offline"}
+        printerInfoCallback: null, // receives what a printer supports eg. {name: "...", raw: true, media: ["iso-a4"], color: false}
         listPortsCallback: null,
-        readyCallback: null
+        readyCallback: null,
+        async: false, // queue print jobs and return a job id instead of waiting for the printer
+        binary: null, // send raw data as binary instead of base64, by default only once the app says it accepts binary uploads
+        jobCallback: null,
+        printCallback: null, // receives the outcome of a print that was waited for, "completed" or "sent", and the timing
+        batchCallback: null,
+        eventCallback: null, // receives pushed job and serial port events eg. {event: "job", data: {job: "...", status: "completed"}}
+        logTiming: false // log the time the app spent on each request to the console, it is always passed to callbacks as the second argument
     };
 
     $.extend(options, opt);
 
+    /*
+     * Data for the raw print functions can be a binary string, an ArrayBuffer or a typed array eg. Uint8Array
+     */
     this.printRaw = function (data, printer) {
-        var request = {a: "printraw", printer: printer, data: btoa(data)};
-        sendAppletRequest(request);
+        var request = {a: "printraw", printer: printer};
+        sendRawRequest(request, data);
     };
 
     this.printSerial = function (data, port) {
@@ -37,13 +50,13 @@ var WebPrint = function (init, opt) {
             alert("Serial port printing is not available in Android.");
             return;
         }
-        var request = {a: "printraw", port: port, data: btoa(data)};
-        sendAppletRequest(request);
+        var request = {a: "printraw", port: port};
+        sendRawRequest(request, data);
     };
     
     this.printTcp = function (data, socket) {
-        var request = {a: "printraw", socket: socket, data: btoa(data)};
-        sendAppletRequest(request);
+        var request = {a: "printraw", socket: socket};
+        sendRawRequest(request, data);
     };
 
     this.printHtml = function (data, printer) {
@@ -52,7 +65,7 @@ var WebPrint = function (init, opt) {
             return;
         }
         var request = {a: "printhtml", printer: printer, data: data};
-        sendAppletRequest(request);
+        sendPrintRequest(request);
     };
     /*
      * Opens a port using the specified settings
@@ -68,13 +81,93 @@ var WebPrint = function (init, opt) {
         sendAppletRequest({a: "listprinters"});
     };
 
+    this.requestPrinterInfo = function (printer) {
+        sendAppletRequest({a: "printerinfo", printer: printer});
+    };
+
     this.requestPorts = function () {
         if (!isAndroid)
             sendAppletRequest({a: "listports"});
     };
 
+    /*
+     * Sends many print jobs in one request, results are passed to batchCallback in the same order
+     * @param jobs Array eg. [{printer: "Receipt", data: "..."}, {port: "COM1", data: "..."}, {printer: "Office", html: "<html>..."}]
+     */
+    this.printBatch = function (jobs) {
+        var requests = [];
+        for (var i = 0; i < jobs.length; i++) {
+            var job = jobs[i];
+            var request;
+            if (job.hasOwnProperty("html")) {
+                request = {a: "printhtml", printer: job.printer, data: job.html};
+            } else {
+                request = {a: "printraw", data: toBase64(job.data)};
+                if (job.printer) request.printer = job.printer;
+                if (job.port) request.port = job.port;
+                if (job.socket) request.socket = job.socket;
+            }
+            requests.push(request);
+        }
+        sendPrintRequest({a: "batch", jobs: requests});
+    };
+
+    /*
+     * Requests the status of an async print job, the result is passed to jobCallback
+     * @param job String job id returned when the job was queued
+     * @param wait Number optional time in ms to wait for the job to finish
+     */
+    this.requestJobStatus = function (job, wait) {
+        sendAppletRequest({a: "jobstatus", job: job, wait: wait ? wait : 0});
+    };
+
+    function sendRawRequest(request, data) {
+        if (options.binary === null ? rawUploads : options.binary) {
+            // the relay window posts the bytes as they are, without base64 or JSON
+            request.bin = toArrayBuffer(data);
+        } else {
+            request.data = toBase64(data);
+        }
+        sendPrintRequest(request);
+    }
+
+    function toArrayBuffer(data) {
+        if (data instanceof ArrayBuffer)
+            return data;
+        if (ArrayBuffer.isView(data))
+            return data.buffer.slice(data.byteOffset, data.byteOffset + data.byteLength);
+        var bytes = new Uint8Array(data.length);
+        for (var i = 0; i < data.length; i++)
+            bytes[i] = data.charCodeAt(i) & 0xff;
+        return bytes.buffer;
+    }
+
+    function toBase64(data) {
+        if (typeof data === "string")
+            return btoa(data);
+        var bytes = new Uint8Array(toArrayBuffer(data));
+        var str = "";
+        for (var i = 0; i < bytes.length; i += 8192)
+            str += String.fromCharCode.apply(null, bytes.subarray(i, i + 8192));
+        return btoa(str);
+    }
+
+    function sendPrintRequest(request) {
+        if (options.async)
+            request.async = true;
+        // lets the app recognise the same request if it is sent again, so it only prints once
+        request.idempotencyKey = new Date().getTime().toString(36) + Math.random().toString(36).substring(2);
+        sendAppletRequest(request);
+    }
+
     function sendAppletRequest(data) {
         data.cookie = cookie;
+        if (options.direct) {
+            sendDirectRequest(data);
+            return;
+        }
+        // binary requests are sent as an object so the data is not converted to a string
+        var message = data.hasOwnProperty("bin") ? data : JSON.stringify(data);
         if (!wpwindow || wpwindow.closed || !wpready) {
             if (wpready){
                openPrintWindow();
@@ -84,10 +177,67 @@ var WebPrint = function (init, opt) {
                 console.log("Print applet connection not established...trying to reconnect");
             }
             setTimeout(function () {
-                wpwindow.postMessage(JSON.stringify(data), "*");
+                wpwindow.postMessage(message, "*");
             }, 220);
         }
-        wpwindow.postMessage(JSON.stringify(data), "*");
+        wpwindow.postMessage(message, "*");
+    }
+
+    /*
+     * Posts a request to the app's HTTPS listener. The body is sent as text or bytes without a custom content type,
+     * so the browser does not need a preflight request. Falls back to the relay window if the app cannot be reached.
+     */
+    function sendDirectRequest(data) {
+        var url = options.directUrl + "/";
+        var body;
+        if (data.hasOwnProperty("bin")) {
+            var query = [];
+            for (var key in data) {
+                if (key != "bin")
+                    query.push(key + "=" + encodeURIComponent(data[key]));
+            }
+            url += "raw?" + query.join("&");
+            body = data.bin;
+        } else {
+            data.origin = location.origin;
+            body = JSON.stringify(data);
+        }
+        fetch(url, {method: "POST", body: body}).then(function (res) {
+            return res.text().then(function (text) {
+                if (text != 1)
+                    handleResponse(JSON.parse(text), res.headers.get("Server-Timing"));
+            });
+        }).catch(function () {
+            console.log("Cannot reach the print app at " + options.directUrl + ", using the relay window");
+            options.direct = false;
+            if (data.a != "init") {
+                delete data.origin;
+                sendAppletRequest(data);
+            } else {
+                checkRelay();
+            }
+        });
+    }
+
+    var events;
+    function openDirectEvents() {
+        if (events || !(options.eventCallback instanceof Function) || !window.EventSource)
+            return;
+        // the stream is opened with a ticket that works once, so the token is never put in a URL
+        sendAppletRequest({a: "eventticket"});
+    }
+
+    function openEvents(ticket) {
+        events = new EventSource(options.directUrl + "/events?origin=" + encodeURIComponent(location.origin) + "&ticket=" + encodeURIComponent(ticket));
+        events.onmessage = function (event) {
+            options.eventCallback(JSON.parse(event.data));
+        };
+        events.onerror = function () {
+            // a used ticket cannot reconnect, get a new one
+            events.close();
+            events = null;
+            setTimeout(openDirectEvents, 2000);
+        };
     }
 
     var wpwindow;
@@ -127,23 +277,11 @@ var WebPrint = function (init, opt) {
                 sendAppletRequest({a:"init"});
                 break;
             case "response":
-                var response = JSON.parse(event.data.json);
-                if (response.hasOwnProperty('ports')) {
-                    if (options.listPortsCallback instanceof Function)
-                        options.listPortsCallback(response.ports);
-                } else if (response.hasOwnProperty('printers')) {
-                    if (options.listPrinterCallback instanceof Function)
-                        options.listPrinterCallback(response.printers);
-                } else if (response.hasOwnProperty('error')) {
-                    alert(response.error);
-                }
-                if (response.hasOwnProperty("cookie")){
-                    cookie = response.cookie;
-                    localStorage.setItem("webprint_auth", response.cookie);
-                }
-                if (response.hasOwnProperty("ready")){
-                    if (options.readyCallback instanceof Function) options.readyCallback();
-                }
+                handleResponse(JSON.parse(event.data.json), event.data.timing);
+                break;
+            case "event":
+                if (options.eventCallback instanceof Function)
+                    options.eventCallback(JSON.parse(event.data.json));
                 break;
             case "error": // cannot contact print applet from relay window
                 if (retry)
@@ -152,6 +290,73 @@ var WebPrint = function (init, opt) {
         //alert("The Web Printing service has been loaded in a new tab, keep it open for faster printing.");
     }
 
+    function handleResponse(response, header) {
+        // websocket responses carry the Server-Timing value in the body
+        if (response.hasOwnProperty("timing")) {
+            header = response.timing;
+            delete response.timing;
+        }
+        var timing = parseTiming(header);
+        if (options.logTiming && header)
+            console.log("WebPrint timing (ms): " + header);
+        if (response.hasOwnProperty('ports')) {
+            if (options.listPortsCallback instanceof Function)
+                options.listPortsCallback(response.ports, timing);
+        } else if (response.hasOwnProperty('printers')) {
+            if (options.listPrinterCallback instanceof Function)
+                options.listPrinterCallback(response.printers, timing, response.status || {});
+        } else if (response.hasOwnProperty('printerinfo')) {
+            if (options.printerInfoCallback instanceof Function)
+                options.printerInfoCallback(response.printerinfo, timing);
+        } else if (response.hasOwnProperty('eventticket')) {
+            if (!events)
+                openEvents(response.eventticket);
+        } else if (response.hasOwnProperty('results')) {
+            if (options.batchCallback instanceof Function)
+                options.batchCallback(response.results, timing);
+        } else if (response.hasOwnProperty('job')) {
+            if (options.jobCallback instanceof Function)
+                options.jobCallback(response, timing);
+        } else if (response.hasOwnProperty('error')) {
+            alert(response.error);
+        } else if (response.hasOwnProperty('status')) {
+            if (options.printCallback instanceof Function)
+                options.printCallback(response.status, timing);
+        }
+        if (response.hasOwnProperty("pending")) {
+            // the user is being asked to allow this site, check back for the answer
+            setTimeout(function () {
+                sendAppletRequest({a: "init", ticket: response.ticket});
+            }, 1000);
+        }
+        if (response.hasOwnProperty("cookie")){
+            cookie = response.cookie;
+            localStorage.setItem("webprint_auth", response.cookie);
+        }
+        if (response.hasOwnProperty("ready")){
+            // older apps and the Android app only read JSON requests
+            rawUploads = response.raw === true;
+            if (options.direct) openDirectEvents();
+            if (options.readyCallback instanceof Function) options.readyCallback();
+        }
+    }
+
+    /*
+     * Parses a Server-Timing header eg. "parse;dur=0.12, acl;dur=0.01, total;dur=35.20" into {parse: 0.12, acl: 0.01, total: 35.2}
+     */
+    function parseTiming(header) {
+        var timing = {};
+        if (!header)
+            return timing;
+        var phases = header.split(",");
+        for (var i = 0; i < phases.length; i++) {
+            var match = /^\s*([^;\s]+).*;\s*dur=([0-9.]+)/.exec(phases[i]);
+            if (match)
+                timing[match[1]] = parseFloat(match[2]);
+        }
+        return timing;
+    }
+
     function dispatchWebPrint() {
         var answer = confirm("Cannot communicate with the printing app.\nWould you like to open/install the printing app?");
         if (answer) {
@@ -210,8 +415,14 @@ var WebPrint = function (init, opt) {
     }
 
     var isAndroid = navigator.appVersion.indexOf("Android")!=-1;
+    var rawUploads = false;
 
-    if (init) checkRelay();
+    if (init) {
+        if (options.direct)
+            sendAppletRequest({a: "init"});
+        else
+            checkRelay();
+    }
     
     return this;
 };
\ No newline at end of file